@@ -0,0 +1,64 @@
+package ca.edtoaster.audio;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Positional queue edits on large queues. Every benchmark keeps the size steady so runs stay comparable.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j2.configurationFile=log4j2-bench.xml")
+public class IndexedTrackListBenchmark {
+    @Param({"10000", "100000"})
+    private int queueLength;
+
+    private IndexedTrackList list;
+    private final SplittableRandom random = new SplittableRandom(42);
+
+    @Setup
+    public void setup() {
+        list = new IndexedTrackList();
+        for (int i = 0; i < queueLength; i++) {
+            list.add(new byte[180], 215_000, false);
+        }
+    }
+
+    @Benchmark
+    public Object removeAndReinsert() {
+        int index = random.nextInt(queueLength);
+        byte[] data = list.remove(index);
+        list.insert(random.nextInt(queueLength), data, 215_000, false);
+        return data;
+    }
+
+    @Benchmark
+    public void move() {
+        list.move(random.nextInt(queueLength), random.nextInt(queueLength));
+    }
+
+    @Benchmark
+    public Object page() {
+        return list.range(random.nextInt(queueLength), 15);
+    }
+
+    @Benchmark
+    public long eta() {
+        return list.getDurationBefore(random.nextInt(queueLength));
+    }
+}
@@ -0,0 +1,135 @@
+package ca.edtoaster.impl.handlers;
+
+import ca.edtoaster.commands.data.MessageCreateData;
+import ca.edtoaster.partition.Stubs;
+import ca.edtoaster.util.ChatGPT;
+import ca.edtoaster.util.ConversationIndex;
+import ca.edtoaster.util.StandInChatServer;
+import discord4j.common.util.Snowflake;
+import discord4j.core.DiscordClient;
+import discord4j.core.event.domain.message.MessageCreateEvent;
+import discord4j.core.object.entity.Message;
+import discord4j.core.object.entity.User;
+import discord4j.core.object.entity.channel.MessageChannel;
+import discord4j.core.object.entity.channel.ThreadChannel;
+import discord4j.core.spec.MessageCreateSpec;
+import discord4j.core.spec.MessageEditSpec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+/**
+ * Whole chat turns against a local stand-in backend: the handler resolves the conversation, posts the
+ * placeholder, streams the answer and edits it in, with Discord stubbed out. Every benchmark thread is a
+ * conversation thread of its own (-t sets how many). Turn latency percentiles come from the sampled run,
+ * turns per second from the throughput run and allocations per turn from the gc profiler.
+ */
+@State(Scope.Benchmark)
+@Threads(16)
+@Warmup(iterations = 1, time = 10)
+@Measurement(iterations = 3, time = 20)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j2.configurationFile=log4j2-bench.xml")
+public class ChatTurnBenchmark {
+    @Param({"50"})
+    private int tokens;
+    @Param({"50"})
+    private double tokensPerSecond;
+    @Param({"200"})
+    private long latencyMillis;
+    @Param({"0.01"})
+    private double errorRate;
+    @Param({"256"})
+    private int chunkBytes;
+
+    private StandInChatServer server;
+    private ChatGPT chat;
+    private ChatHandler handler;
+    private User botUser;
+
+    @Setup
+    public void setup() {
+        server = new StandInChatServer(0, new StandInChatServer.Settings(
+                tokens, tokensPerSecond, Duration.ofMillis(latencyMillis), errorRate, chunkBytes));
+        chat = new ChatGPT(server.getEndpoint());
+        handler = new ChatHandler(Snowflake.of(3), Stubs.stub(DiscordClient.class), chat, new ConversationIndex(null));
+
+        MessageChannel channel = Stubs.stub(MessageChannel.class);
+        when(channel.getId()).thenReturn(Snowflake.of(4));
+        handler.monitorChannel(channel, "stand-in");
+        botUser = Stubs.user(1, "toastbot");
+    }
+
+    @TearDown
+    public void tearDown() {
+        chat.dispose();
+        server.dispose();
+    }
+
+    /**
+     * One conversation thread and its author
+     */
+    @State(Scope.Thread)
+    public static class Conversation {
+        private static final AtomicLong ids = new AtomicLong(1_000);
+
+        private MessageCreateData data;
+
+        @Setup
+        public void setup(ChatTurnBenchmark benchmark) {
+            long id = ids.incrementAndGet();
+
+            Message reply = Stubs.stub(Message.class);
+            when(reply.edit(any(MessageEditSpec.class))).thenReturn(Mono.just(reply));
+
+            ThreadChannel thread = Stubs.stub(ThreadChannel.class);
+            when(thread.getId()).thenReturn(Snowflake.of(id));
+            when(thread.createMessage(any(MessageCreateSpec.class))).thenReturn(Mono.just(reply));
+            // nothing to find in the history, the first turn starts a new conversation
+            when(thread.getMessagesBefore(any())).thenReturn(Flux.empty());
+
+            Message message = Stubs.stub(Message.class);
+            when(message.getChannel()).thenReturn(Mono.just(thread));
+            when(message.getTimestamp()).thenReturn(Instant.now());
+            when(message.getContent()).thenReturn("what should I have for dinner tonight?");
+
+            MessageCreateEvent event = Stubs.stub(MessageCreateEvent.class);
+            when(event.getMessage()).thenReturn(message);
+
+            data = new MessageCreateData(Snowflake.of(3), Stubs.user(id, "user" + id), benchmark.botUser, event);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void turnLatency(Conversation conversation) {
+        handler.handleMessageCreate(conversation.data).block();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void turnThroughput(Conversation conversation) {
+        handler.handleMessageCreate(conversation.data).block();
+    }
+}
@@ -0,0 +1,66 @@
+package ca.edtoaster.impl.handlers;
+
+import ca.edtoaster.impl.AudioServices;
+import ca.edtoaster.partition.Stubs;
+import discord4j.common.util.Snowflake;
+import discord4j.core.DiscordClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering the queue embed. Refreshes reuse the last render until the scheduler changes,
+ * the uncached variant measures what a change costs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j2.configurationFile=log4j2-bench.xml")
+public class QueueRenderBenchmark {
+    @Param({"10", "1000", "50000"})
+    private int queueLength;
+
+    private MusicHandler handler;
+
+    @Setup
+    public void setup() {
+        AudioServices audioServices = new AudioServices(1, 1, Duration.ZERO, false, 0, false, null);
+        StubSourceManager sourceManager = new StubSourceManager();
+        audioServices.getPlayerManager().registerSourceManager(sourceManager);
+        handler = new MusicHandler(Snowflake.of(3), Stubs.stub(DiscordClient.class), audioServices);
+
+        // the first track starts playing, the rest are queued behind it
+        for (int i = 0; i <= queueLength; i++) {
+            handler.getTrackScheduler().enqueue(StubTrack.of(i, sourceManager));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        handler.dispose();
+    }
+
+    @Benchmark
+    public Object queueEmbed() {
+        return handler.getQueueMessageEmbed();
+    }
+
+    @Benchmark
+    public Object queueEmbedUncached() {
+        return handler.renderQueueMessageEmbed();
+    }
+}
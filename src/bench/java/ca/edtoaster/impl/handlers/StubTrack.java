@@ -0,0 +1,48 @@
+package ca.edtoaster.impl.handlers;
+
+import com.sedmelluq.discord.lavaplayer.source.AudioSourceManager;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackInfo;
+import com.sedmelluq.discord.lavaplayer.track.BaseAudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.playback.LocalAudioTrackExecutor;
+
+/**
+ * Track that never produces audio, it just holds the player until it is stopped
+ */
+public class StubTrack extends BaseAudioTrack {
+    private final StubSourceManager sourceManager;
+
+    public StubTrack(AudioTrackInfo info, StubSourceManager sourceManager) {
+        super(info);
+        this.sourceManager = sourceManager;
+    }
+
+    public static StubTrack of(int i, StubSourceManager sourceManager) {
+        return new StubTrack(new AudioTrackInfo(
+                String.format("Some fairly long song title number %d (Official Video)", i),
+                "Some Artist",
+                215_000,
+                "stub-" + i,
+                false,
+                "https://example.com/watch?v=stub-" + i), sourceManager);
+    }
+
+    @Override
+    public void process(LocalAudioTrackExecutor executor) {
+        try {
+            Thread.sleep(Long.MAX_VALUE);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public AudioSourceManager getSourceManager() {
+        return sourceManager;
+    }
+
+    @Override
+    public AudioTrack makeClone() {
+        return new StubTrack(getInfo(), sourceManager);
+    }
+}
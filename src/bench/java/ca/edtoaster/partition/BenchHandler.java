@@ -0,0 +1,48 @@
+package ca.edtoaster.partition;
+
+import ca.edtoaster.annotations.ButtonListener;
+import ca.edtoaster.annotations.Command;
+import ca.edtoaster.annotations.CommandNamespace;
+import ca.edtoaster.annotations.Option;
+import ca.edtoaster.commands.data.ApplicationCommandInteractionData;
+import ca.edtoaster.commands.data.ButtonInteractionData;
+import discord4j.common.util.Snowflake;
+import discord4j.core.DiscordClient;
+import discord4j.core.object.entity.User;
+import reactor.core.publisher.Mono;
+
+/**
+ * Handler that does no work of its own, so benchmarks only measure the dispatch around it
+ */
+@CommandNamespace(name = "bench", description = "Benchmark commands")
+public class BenchHandler {
+    public static final String BUTTON_PREFIX = "BENCH-";
+
+    public BenchHandler(Snowflake namespace, DiscordClient discordClient) {
+    }
+
+    @Command(description = "No options")
+    public Mono<Void> ping(ApplicationCommandInteractionData data) {
+        return Mono.empty();
+    }
+
+    @Command(description = "Every primitive option type")
+    public Mono<Void> echo(ApplicationCommandInteractionData data,
+                           @Option(name = "text", description = "Text") String text,
+                           @Option(name = "count", description = "Count") Long count,
+                           @Option(name = "loud", description = "Loud") Boolean loud,
+                           @Option(name = "suffix", description = "Suffix", required = false) String suffix) {
+        return Mono.empty();
+    }
+
+    @Command(description = "A user option")
+    public Mono<Void> poke(ApplicationCommandInteractionData data,
+                           @Option(name = "who", description = "Who") User who) {
+        return Mono.empty();
+    }
+
+    @ButtonListener(prefix = BUTTON_PREFIX)
+    public Mono<Void> click(ButtonInteractionData data) {
+        return Mono.empty();
+    }
+}
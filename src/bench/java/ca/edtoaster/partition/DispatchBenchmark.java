@@ -0,0 +1,76 @@
+package ca.edtoaster.partition;
+
+import ca.edtoaster.commands.InteractionHandlerSpec;
+import discord4j.common.util.Snowflake;
+import discord4j.core.DiscordClient;
+import discord4j.core.event.domain.interaction.ApplicationCommandInteractionEvent;
+import discord4j.core.event.domain.interaction.ButtonInteractionEvent;
+import discord4j.core.object.entity.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full trip through a partition: lane, router, option fetching and the generated invoker
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j2.configurationFile=log4j2-bench.xml")
+public class DispatchBenchmark {
+    private Partition partition;
+    private ApplicationCommandInteractionEvent ping;
+    private ApplicationCommandInteractionEvent echo;
+    private ButtonInteractionEvent click;
+
+    @Setup
+    public void setup() {
+        CommandRegistry registry = CommandRegistry.build(List.of(new InteractionHandlerSpec(BenchHandler.class, BenchHandler::new)));
+        User botUser = Stubs.user(1, "toastbot");
+        User who = Stubs.user(2, "someone");
+
+        partition = new Partition(Snowflake.of(3), botUser, Stubs.stub(DiscordClient.class), registry, LaneSettings.DEFAULT);
+
+        ping = Stubs.slash("bench", Stubs.subCommand("ping", Map.of()), who, null);
+        echo = Stubs.slash("bench", Stubs.subCommand("echo", Map.of(
+                "text", "hello",
+                "count", 3L,
+                "loud", true)), who, null);
+        click = Stubs.button(BenchHandler.BUTTON_PREFIX + "PLAY", who);
+    }
+
+    @TearDown
+    public void tearDown() {
+        partition.dispose();
+    }
+
+    @Benchmark
+    public Object slashNoOptions() {
+        return Mono.from(partition.handleSlash(ping)).block();
+    }
+
+    @Benchmark
+    public Object slashWithOptions() {
+        return Mono.from(partition.handleSlash(echo)).block();
+    }
+
+    @Benchmark
+    public Object button() {
+        return Mono.from(partition.handleButton(click)).block();
+    }
+}
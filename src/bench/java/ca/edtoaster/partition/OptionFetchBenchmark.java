@@ -0,0 +1,83 @@
+package ca.edtoaster.partition;
+
+import ca.edtoaster.commands.InteractionHandlerSpec;
+import ca.edtoaster.commands.data.ApplicationCommandInteractionData;
+import discord4j.common.util.Snowflake;
+import discord4j.core.DiscordClient;
+import discord4j.core.object.entity.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import reactor.core.publisher.Flux;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Option fetching in PartitionedCommandHandler, without the lane in front of it
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j2.configurationFile=log4j2-bench.xml")
+public class OptionFetchBenchmark {
+    private PartitionedCommandHandler handler;
+    private ApplicationCommandInteractionData primitives;
+    private ApplicationCommandInteractionData resolvedUser;
+    private ApplicationCommandInteractionData cachedUser;
+
+    @Setup
+    public void setup() {
+        CommandRegistry registry = CommandRegistry.build(List.of(new InteractionHandlerSpec(BenchHandler.class, BenchHandler::new)));
+        RegisteredNamespace namespace = registry.getNamespaces().get(0);
+        ResolvedEntityCache entityCache = new ResolvedEntityCache();
+        handler = new PartitionedCommandHandler(namespace.name(),
+                namespace.optionsMap(),
+                namespace.invokers(),
+                new BenchHandler(Snowflake.of(3), Stubs.stub(DiscordClient.class)),
+                entityCache);
+
+        Snowflake guild = Snowflake.of(3);
+        User botUser = Stubs.user(1, "toastbot");
+        User who = Stubs.user(2, "someone");
+        User target = Stubs.user(4, "target");
+        User cached = Stubs.user(5, "cached");
+        entityCache.put(cached.getId(), cached);
+
+        primitives = new ApplicationCommandInteractionData(guild, who, botUser,
+                Stubs.slash("bench", Stubs.subCommand("echo", Map.of(
+                        "text", "hello",
+                        "count", 3L,
+                        "loud", true,
+                        "suffix", "!")), who, null));
+        resolvedUser = new ApplicationCommandInteractionData(guild, who, botUser,
+                Stubs.slash("bench", Stubs.subCommand("poke", Map.of("who", target)), who, Stubs.resolvedUser(target)));
+        cachedUser = new ApplicationCommandInteractionData(guild, who, botUser,
+                Stubs.slash("bench", Stubs.subCommand("poke", Map.of("who", cached)), who, null));
+    }
+
+    @Benchmark
+    public Object primitiveOptions() {
+        return Flux.from(handler.handle(primitives)).blockLast();
+    }
+
+    @Benchmark
+    public Object userFromResolvedPayload() {
+        return Flux.from(handler.handle(resolvedUser)).blockLast();
+    }
+
+    @Benchmark
+    public Object userFromEntityCache() {
+        return Flux.from(handler.handle(cachedUser)).blockLast();
+    }
+}
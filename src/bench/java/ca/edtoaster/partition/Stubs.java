@@ -0,0 +1,117 @@
+package ca.edtoaster.partition;
+
+import discord4j.common.util.Snowflake;
+import discord4j.core.event.domain.interaction.ApplicationCommandInteractionEvent;
+import discord4j.core.event.domain.interaction.ButtonInteractionEvent;
+import discord4j.core.object.command.ApplicationCommandInteraction;
+import discord4j.core.object.command.ApplicationCommandInteractionOption;
+import discord4j.core.object.command.ApplicationCommandInteractionOptionValue;
+import discord4j.core.object.command.ApplicationCommandInteractionResolved;
+import discord4j.core.object.command.ApplicationCommandOption;
+import discord4j.core.object.command.Interaction;
+import discord4j.core.object.entity.User;
+import reactor.util.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Discord4J events stubbed just far enough for dispatch. Stubs do not record invocations,
+ * so they neither grow nor allocate per call during a run.
+ */
+public final class Stubs {
+    private Stubs() {
+    }
+
+    public static <T> T stub(Class<T> type) {
+        return mock(type, withSettings().stubOnly());
+    }
+
+    public static User user(long id, String name) {
+        User user = stub(User.class);
+        when(user.getId()).thenReturn(Snowflake.of(id));
+        when(user.getUsername()).thenReturn(name);
+        return user;
+    }
+
+    private static ApplicationCommandInteractionOptionValue value(Object value) {
+        ApplicationCommandInteractionOptionValue stub = stub(ApplicationCommandInteractionOptionValue.class);
+        when(stub.getRaw()).thenReturn(String.valueOf(value));
+        if (value instanceof String) {
+            when(stub.asString()).thenReturn((String) value);
+        } else if (value instanceof Long) {
+            when(stub.asLong()).thenReturn((Long) value);
+        } else if (value instanceof Boolean) {
+            when(stub.asBoolean()).thenReturn((Boolean) value);
+        } else if (value instanceof User) {
+            when(stub.asSnowflake()).thenReturn(((User) value).getId());
+        } else {
+            throw new IllegalArgumentException(String.format("Cannot stub option value %s", value));
+        }
+        return stub;
+    }
+
+    /**
+     * A sub command option carrying the given named option values
+     */
+    public static ApplicationCommandInteractionOption subCommand(String name, Map<String, Object> values) {
+        ApplicationCommandInteractionOption subCommand = stub(ApplicationCommandInteractionOption.class);
+        when(subCommand.getType()).thenReturn(ApplicationCommandOption.Type.SUB_COMMAND);
+        when(subCommand.getName()).thenReturn(name);
+        when(subCommand.getOption(anyString())).thenReturn(Optional.empty());
+
+        List<ApplicationCommandInteractionOption> options = new ArrayList<>();
+        values.forEach((optionName, value) -> {
+            ApplicationCommandInteractionOption option = stub(ApplicationCommandInteractionOption.class);
+            ApplicationCommandInteractionOptionValue optionValue = value(value);
+            when(option.getName()).thenReturn(optionName);
+            when(option.getValue()).thenReturn(Optional.of(optionValue));
+            when(subCommand.getOption(optionName)).thenReturn(Optional.of(option));
+            options.add(option);
+        });
+        when(subCommand.getOptions()).thenReturn(options);
+
+        return subCommand;
+    }
+
+    public static ApplicationCommandInteractionResolved resolvedUser(User user) {
+        ApplicationCommandInteractionResolved resolved = stub(ApplicationCommandInteractionResolved.class);
+        when(resolved.getUser(user.getId())).thenReturn(Optional.of(user));
+        return resolved;
+    }
+
+    public static ApplicationCommandInteractionEvent slash(String command,
+                                                           ApplicationCommandInteractionOption subCommand,
+                                                           User who,
+                                                           @Nullable ApplicationCommandInteractionResolved resolved) {
+        ApplicationCommandInteraction commandInteraction = stub(ApplicationCommandInteraction.class);
+        when(commandInteraction.getOptions()).thenReturn(List.of(subCommand));
+        when(commandInteraction.getResolved()).thenReturn(Optional.ofNullable(resolved));
+
+        Interaction interaction = stub(Interaction.class);
+        when(interaction.getUser()).thenReturn(who);
+        when(interaction.getCommandInteraction()).thenReturn(Optional.of(commandInteraction));
+
+        ApplicationCommandInteractionEvent event = stub(ApplicationCommandInteractionEvent.class);
+        when(event.getInteraction()).thenReturn(interaction);
+        when(event.getCommandName()).thenReturn(command);
+        return event;
+    }
+
+    public static ButtonInteractionEvent button(String customId, User who) {
+        Interaction interaction = stub(Interaction.class);
+        when(interaction.getUser()).thenReturn(who);
+
+        ButtonInteractionEvent event = stub(ButtonInteractionEvent.class);
+        when(event.getInteraction()).thenReturn(interaction);
+        when(event.getCustomId()).thenReturn(customId);
+        return event;
+    }
+}
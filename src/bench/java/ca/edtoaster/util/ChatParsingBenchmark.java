@@ -0,0 +1,115 @@
+package ca.edtoaster.util;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding a conversation response the way it arrives, in network sized chunks. The endpoint streams the
+ * whole message so far in every event, so the body grows quadratically with the length of the answer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j2.configurationFile=log4j2-bench.xml")
+public class ChatParsingBenchmark {
+    @Param({"50", "500"})
+    private int events;
+
+    // typical TLS record payload
+    private static final int CHUNK_BYTES = 16 * 1024;
+
+    private List<ByteBuf> chunks;
+    private ByteBuf lastEvent;
+    private ChatRequest request;
+    private ByteBuf requestBody;
+
+    static String event(String text) {
+        return StandInChatServer.event("bd2e18aa-348b-4d3f-a29e-11133cf1142c", "28c38d0f-ebcf-4ceb-bb6b-b9a950cbcce1", text);
+    }
+
+    /**
+     * Response body the way the endpoint sends it, one event per generated word
+     */
+    static String body(int events) {
+        StringBuilder text = new StringBuilder();
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < events; i++) {
+            text.append(i == 0 ? "" : " ").append("word").append(i);
+            body.append("data: ").append(event(text.toString())).append("\n\n");
+        }
+        body.append("data: [DONE]\n\n");
+        return body.toString();
+    }
+
+    @Setup
+    public void setup() {
+        byte[] bytes = body(events).getBytes(StandardCharsets.UTF_8);
+        chunks = new ArrayList<>();
+        for (int i = 0; i < bytes.length; i += CHUNK_BYTES) {
+            // netty reads into pooled direct buffers, so decode from the same kind
+            int length = Math.min(CHUNK_BYTES, bytes.length - i);
+            chunks.add(Unpooled.directBuffer(length).writeBytes(bytes, i, length));
+        }
+        String[] last = new String[1];
+        SseDecoder decoder = new SseDecoder();
+        for (ByteBuf chunk : chunks) {
+            decoder.feed(chunk.duplicate(), data -> {
+                if (data.getByte(data.readerIndex()) == '{') last[0] = data.toString(StandardCharsets.UTF_8);
+            });
+        }
+        lastEvent = Unpooled.directBuffer().writeBytes(last[0].getBytes(StandardCharsets.UTF_8));
+        request = new ChatRequest(new ResponseId("bd2e18aa-348b-4d3f-a29e-11133cf1142c", "28c38d0f-ebcf-4ceb-bb6b-b9a950cbcce1"),
+                "what is the fastest way to parse a server-sent event stream on the jvm?");
+        requestBody = Unpooled.directBuffer(512);
+    }
+
+    @Benchmark
+    public void decodeEvents(Blackhole blackhole) {
+        SseDecoder decoder = new SseDecoder();
+        for (ByteBuf chunk : chunks) {
+            decoder.feed(chunk.duplicate(), blackhole::consume);
+        }
+    }
+
+    @Benchmark
+    public Object parseEvent() {
+        return ChatResponse.parse(lastEvent.duplicate());
+    }
+
+    /**
+     * Everything the stream does per response
+     */
+    @Benchmark
+    public void decodeResponse(Blackhole blackhole) {
+        ChatResponseDecoder decoder = new ChatResponseDecoder();
+        for (ByteBuf chunk : chunks) {
+            blackhole.consume(decoder.feed(chunk.duplicate()));
+        }
+    }
+
+    @Benchmark
+    public Object writeRequest() throws IOException {
+        request.writeJSON(requestBody.clear());
+        return requestBody;
+    }
+}
@@ -0,0 +1,130 @@
+package ca.edtoaster.util;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import lombok.extern.log4j.Log4j2;
+import org.reactivestreams.Publisher;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+import reactor.netty.http.server.HttpServerRequest;
+import reactor.netty.http.server.HttpServerResponse;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Local stand-in for the conversation endpoint. Answers stream back as server-sent events the way the real
+ * endpoint sends them, every event carrying the whole answer so far, at a set pace and with a share of
+ * requests failing outright. Run on its own and point CHATGPT_ENDPOINT at it to try the bot offline:
+ * <pre>java -cp ... ca.edtoaster.util.StandInChatServer [port]</pre>
+ */
+@Log4j2
+public class StandInChatServer implements Disposable {
+    public static final String PATH = "/backend-api/conversation";
+
+    /**
+     * @param tokens words in every answer
+     * @param latency wait before the first word
+     * @param errorRate share of requests answered with a 503 instead
+     * @param chunkBytes most bytes written at once, events longer than this are split across writes
+     */
+    public record Settings(int tokens, double tokensPerSecond, Duration latency, double errorRate, int chunkBytes) {
+    }
+
+    private final Settings settings;
+    private final DisposableServer server;
+
+    /**
+     * @param port where to listen, 0 for any free port
+     */
+    public StandInChatServer(int port, Settings settings) {
+        this.settings = settings;
+        this.server = HttpServer.create()
+                .host("127.0.0.1")
+                .port(port)
+                .route(routes -> routes.post(PATH, this::converse))
+                .bindNow();
+    }
+
+    public String getEndpoint() {
+        return String.format("http://127.0.0.1:%d%s", server.port(), PATH);
+    }
+
+    @Override
+    public void dispose() {
+        server.disposeNow();
+    }
+
+    @Override
+    public boolean isDisposed() {
+        return server.isDisposed();
+    }
+
+    private Publisher<Void> converse(HttpServerRequest request, HttpServerResponse response) {
+        // the request is never looked at, every answer starts a new made up conversation
+        Mono<Void> received = request.receive().then();
+
+        if (ThreadLocalRandom.current().nextDouble() < settings.errorRate()) {
+            return received.then(response.status(HttpResponseStatus.SERVICE_UNAVAILABLE)
+                    .sendString(Mono.just("{\"detail\": \"injected failure\"}"))
+                    .then());
+        }
+
+        String conversationId = UUID.randomUUID().toString();
+        String messageId = UUID.randomUUID().toString();
+        Duration interval = Duration.ofNanos((long) (1_000_000_000 / settings.tokensPerSecond()));
+        Flux<ByteBuf> body = Flux.interval(settings.latency(), interval)
+                .take(settings.tokens())
+                .map(i -> "data: " + event(conversationId, messageId, text((int) (i + 1))) + "\n\n")
+                .concatWith(Mono.just("data: [DONE]\n\n"))
+                .concatMapIterable(this::chunks);
+
+        return received.then(response
+                .header(HttpHeaderNames.CONTENT_TYPE, "text/event-stream")
+                // flushed write by write, so the client sees the same chunking
+                .send(body, chunk -> true)
+                .then());
+    }
+
+    private List<ByteBuf> chunks(String event) {
+        byte[] bytes = event.getBytes(StandardCharsets.UTF_8);
+        List<ByteBuf> chunks = new ArrayList<>();
+        for (int i = 0; i < bytes.length; i += settings.chunkBytes()) {
+            chunks.add(Unpooled.wrappedBuffer(bytes, i, Math.min(settings.chunkBytes(), bytes.length - i)));
+        }
+        return chunks;
+    }
+
+    private static String text(int words) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            text.append(i == 0 ? "" : " ").append("word").append(i);
+        }
+        return text.toString();
+    }
+
+    static String event(String conversationId, String messageId, String text) {
+        return "{\"message\": {\"id\": \"" + messageId + "\", \"role\": \"assistant\", \"user\": null, "
+                + "\"create_time\": null, \"update_time\": null, "
+                + "\"content\": {\"content_type\": \"text\", \"parts\": [\"" + text + "\"]}, "
+                + "\"end_turn\": null, \"weight\": 1.0, \"metadata\": {}, \"recipient\": \"all\"}, "
+                + "\"conversation_id\": \"" + conversationId + "\", \"error\": null}";
+    }
+
+    public static void main(String[] args) {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8089;
+        StandInChatServer server = new StandInChatServer(port,
+                new Settings(60, 30, Duration.ofMillis(300), 0.02, 512));
+        log.info(String.format("Stand-in conversation endpoint listening on %s", server.getEndpoint()));
+        server.server.onDispose().block();
+    }
+}
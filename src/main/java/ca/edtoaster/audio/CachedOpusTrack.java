@@ -0,0 +1,51 @@
+package ca.edtoaster.audio;
+
+import com.sedmelluq.discord.lavaplayer.format.StandardAudioDataFormats;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.BaseAudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.playback.AudioFrameBuffer;
+import com.sedmelluq.discord.lavaplayer.track.playback.ImmutableAudioFrame;
+import com.sedmelluq.discord.lavaplayer.track.playback.LocalAudioTrackExecutor;
+import lombok.Getter;
+
+import static ca.edtoaster.audio.OpusSegment.FRAME_MILLIS;
+
+/**
+ * Plays a track from the frames recorded the last time it played at this volume, so nothing is fetched or
+ * transcoded. The frames already have the volume applied and go to the player as they are. Info, and with it
+ * what is shown and saved, is the original track's.
+ */
+public class CachedOpusTrack extends BaseAudioTrack {
+    @Getter
+    private final AudioTrack original;
+    @Getter
+    private final int volume;
+    private final OpusSegment segment;
+
+    CachedOpusTrack(AudioTrack original, OpusSegment segment, int volume) {
+        super(original.getInfo());
+        this.original = original;
+        this.segment = segment;
+        this.volume = volume;
+    }
+
+    @Override
+    public void process(LocalAudioTrackExecutor executor) throws Exception {
+        AudioFrameBuffer frameBuffer = executor.getProcessingContext().frameBuffer;
+        int[] next = {0};
+
+        executor.executeProcessingLoop(() -> {
+            while (next[0] < segment.getFrameCount()) {
+                int index = next[0];
+                frameBuffer.consume(new ImmutableAudioFrame((long) index * FRAME_MILLIS, segment.frame(index),
+                        volume, StandardAudioDataFormats.DISCORD_OPUS));
+                next[0] = index + 1;
+            }
+        }, position -> next[0] = (int) Math.min(segment.getFrameCount(), position / FRAME_MILLIS));
+    }
+
+    @Override
+    protected AudioTrack makeShallowClone() {
+        return new CachedOpusTrack(original, segment, volume);
+    }
+}
@@ -0,0 +1,136 @@
+package ca.edtoaster.audio;
+
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import lombok.Getter;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static ca.edtoaster.audio.OpusSegment.FRAME_MILLIS;
+
+/**
+ * Streams the frames sent for one track to a temporary segment file, so a complete play can be stored in
+ * the frame cache. Frames are collected into small chunks on the voice send thread and written on
+ * boundedElastic, so a recording holds a chunk or two in memory however long the track is. Appends come from
+ * the send thread, but a recording can be closed from elsewhere when playback stops.
+ */
+final class FrameRecorder {
+    // a skip in the last second still counts as having played the whole track
+    private static final long COMPLETE_SLACK_MILLIS = 1000;
+    // about two seconds of frames
+    private static final int CHUNK_BYTES = 16 * 1024;
+
+    @Getter
+    private final String name;
+    @Getter
+    private final AudioTrack track;
+    @Getter
+    private final Path file;
+    private final int volume;
+
+    private final Sinks.Many<ByteBuffer> chunks = Sinks.many().unicast().onBackpressureBuffer();
+    private final Mono<Void> written;
+
+    // guarded by this
+    private ByteBuffer chunk = ByteBuffer.allocate(CHUNK_BYTES);
+    private int frameCount;
+    private long nextTimecode;
+    private boolean closed;
+
+    FrameRecorder(String name, AudioTrack track, int volume, Path file) {
+        this.name = name;
+        this.track = track;
+        this.volume = volume;
+        this.file = file;
+
+        this.written = Flux.using(() -> open(file),
+                        channel -> chunks.asFlux().doOnNext(c -> write(channel, c)),
+                        FrameRecorder::closeChannel)
+                .subscribeOn(Schedulers.boundedElastic())
+                .then()
+                .cache();
+        // started right away, a failed write shows when the recording is closed
+        written.subscribe(null, e -> {
+        });
+    }
+
+    /**
+     * @return false once the frames are no longer one continuous play from the start at the same volume,
+     * after which the recording is useless
+     */
+    synchronized boolean append(ByteBuffer frame, long timecode, int volume) {
+        if (closed) return false;
+        if (volume != this.volume) return false;
+        if (timecode < nextTimecode - FRAME_MILLIS / 2 || timecode > nextTimecode + FRAME_MILLIS) return false;
+
+        int length = frame.remaining();
+        if (length > OpusSegment.MAX_FRAME_BYTES || Short.BYTES + length > CHUNK_BYTES) return false;
+        if (chunk.remaining() < Short.BYTES + length) {
+            flush();
+        }
+
+        OpusSegment.putFrame(chunk, frame);
+        frameCount++;
+        nextTimecode = timecode + FRAME_MILLIS;
+        return true;
+    }
+
+    synchronized boolean isComplete() {
+        return frameCount > 0 && (long) frameCount * FRAME_MILLIS >= track.getDuration() - COMPLETE_SLACK_MILLIS;
+    }
+
+    synchronized int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Hand over the last chunk. Completes on boundedElastic once every frame is in the file.
+     */
+    synchronized Mono<Void> close() {
+        if (!closed) {
+            closed = true;
+            flush();
+            chunks.tryEmitComplete();
+        }
+        return written.publishOn(Schedulers.boundedElastic());
+    }
+
+    private void flush() {
+        if (chunk.position() == 0) return;
+        chunks.tryEmitNext(chunk.flip());
+        chunk = ByteBuffer.allocate(CHUNK_BYTES);
+    }
+
+    private static FileChannel open(Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+    }
+
+    private static void write(FileChannel channel, ByteBuffer chunk) {
+        try {
+            while (chunk.hasRemaining()) {
+                channel.write(chunk);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void closeChannel(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,352 @@
+package ca.edtoaster.audio;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Sequence of encoded tracks backed by an implicit treap. Every node knows the size and total duration of its
+ * subtree, so positional access, insertion, removal, moves and duration prefix sums are all O(log n).
+ * Not thread safe.
+ */
+class IndexedTrackList {
+    private static final class Node {
+        final byte[] data;
+        // 0 for streams, which have no known end
+        final long duration;
+        final boolean stream;
+        int priority;
+
+        Node left;
+        Node right;
+        int size;
+        long durationSum;
+        long byteSum;
+        int streamCount;
+
+        Node(byte[] data, long duration, boolean stream, int priority) {
+            this.data = data;
+            this.duration = stream ? 0 : duration;
+            this.stream = stream;
+            this.priority = priority;
+            update();
+        }
+
+        void update() {
+            size = 1 + size(left) + size(right);
+            durationSum = duration + durationSum(left) + durationSum(right);
+            byteSum = data.length + byteSum(left) + byteSum(right);
+            streamCount = (stream ? 1 : 0) + streamCount(left) + streamCount(right);
+        }
+    }
+
+    private Node root;
+
+    private static int size(Node n) {
+        return n == null ? 0 : n.size;
+    }
+
+    private static long durationSum(Node n) {
+        return n == null ? 0 : n.durationSum;
+    }
+
+    private static long byteSum(Node n) {
+        return n == null ? 0 : n.byteSum;
+    }
+
+    private static int streamCount(Node n) {
+        return n == null ? 0 : n.streamCount;
+    }
+
+    private static Node merge(Node a, Node b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        if (a.priority > b.priority) {
+            a.right = merge(a.right, b);
+            a.update();
+            return a;
+        } else {
+            b.left = merge(a, b.left);
+            b.update();
+            return b;
+        }
+    }
+
+    /**
+     * Split into the first k nodes and the rest
+     */
+    private static Node[] split(Node n, int k) {
+        if (n == null) return new Node[]{null, null};
+        if (size(n.left) >= k) {
+            Node[] parts = split(n.left, k);
+            n.left = parts[1];
+            n.update();
+            return new Node[]{parts[0], n};
+        } else {
+            Node[] parts = split(n.right, k - size(n.left) - 1);
+            n.right = parts[0];
+            n.update();
+            return new Node[]{n, parts[1]};
+        }
+    }
+
+    private static Node node(byte[] data, long duration, boolean stream) {
+        return new Node(data, duration, stream, ThreadLocalRandom.current().nextInt());
+    }
+
+    public int size() {
+        return size(root);
+    }
+
+    public boolean isEmpty() {
+        return root == null;
+    }
+
+    /**
+     * Encoded size of every entry
+     */
+    public long getBytes() {
+        return byteSum(root);
+    }
+
+    /**
+     * Total duration of every entry, not counting streams
+     */
+    public long getTotalDuration() {
+        return durationSum(root);
+    }
+
+    public int getStreamCount() {
+        return streamCount(root);
+    }
+
+    /**
+     * Total duration of the entries before the given index, not counting streams
+     */
+    public long getDurationBefore(int index) {
+        long sum = 0;
+        Node n = root;
+        int k = index;
+        while (n != null) {
+            int leftSize = size(n.left);
+            if (k <= leftSize) {
+                n = n.left;
+            } else {
+                sum += durationSum(n.left) + n.duration;
+                k -= leftSize + 1;
+                n = n.right;
+            }
+        }
+        return sum;
+    }
+
+    public void add(byte[] data, long duration, boolean stream) {
+        root = merge(root, node(data, duration, stream));
+    }
+
+    public void insert(int index, byte[] data, long duration, boolean stream) {
+        checkPosition(index, size());
+        Node[] parts = split(root, index);
+        root = merge(merge(parts[0], node(data, duration, stream)), parts[1]);
+    }
+
+    public byte[] get(int index) {
+        checkIndex(index);
+        Node n = root;
+        int k = index;
+        while (true) {
+            int leftSize = size(n.left);
+            if (k < leftSize) {
+                n = n.left;
+            } else if (k == leftSize) {
+                return n.data;
+            } else {
+                k -= leftSize + 1;
+                n = n.right;
+            }
+        }
+    }
+
+    /**
+     * Up to count entries starting at from, without visiting anything before from
+     */
+    public List<byte[]> range(int from, int count) {
+        List<byte[]> out = new ArrayList<>(Math.max(0, Math.min(count, size() - from)));
+        collect(root, from, count, out);
+        return out;
+    }
+
+    private static void collect(Node n, int from, int count, List<byte[]> out) {
+        if (n == null || out.size() >= count) return;
+        int leftSize = size(n.left);
+        if (from < leftSize) {
+            collect(n.left, from, count, out);
+        }
+        if (out.size() < count && from <= leftSize) {
+            out.add(n.data);
+        }
+        if (out.size() < count) {
+            collect(n.right, Math.max(0, from - leftSize - 1), count, out);
+        }
+    }
+
+    /**
+     * Every entry in order, along with the duration and stream flag it was added with
+     */
+    public List<QueuedTrack> entries() {
+        List<QueuedTrack> out = new ArrayList<>(size());
+        ArrayDeque<Node> path = new ArrayDeque<>();
+        Node n = root;
+        while (n != null || !path.isEmpty()) {
+            while (n != null) {
+                path.push(n);
+                n = n.left;
+            }
+            n = path.pop();
+            out.add(new QueuedTrack(n.data, n.duration, n.stream));
+            n = n.right;
+        }
+        return out;
+    }
+
+    public byte[] removeFirst() {
+        return remove(0);
+    }
+
+    public byte[] remove(int index) {
+        checkIndex(index);
+        Node[] head = split(root, index);
+        Node[] tail = split(head[1], 1);
+        root = merge(head[0], tail[1]);
+        return tail[0].data;
+    }
+
+    /**
+     * Remove entries in [from, to), returning how many were removed
+     */
+    public int removeRange(int from, int to) {
+        checkPosition(from, size());
+        checkPosition(to, size());
+        if (from >= to) return 0;
+
+        Node[] head = split(root, from);
+        Node[] tail = split(head[1], to - from);
+        root = merge(head[0], tail[1]);
+        return size(tail[0]);
+    }
+
+    /**
+     * Move the entry at from so it ends up at index to
+     */
+    public void move(int from, int to) {
+        checkIndex(from);
+        checkIndex(to);
+        if (from == to) return;
+
+        Node[] head = split(root, from);
+        Node[] tail = split(head[1], 1);
+        Node moved = tail[0];
+        Node rest = merge(head[0], tail[1]);
+
+        Node[] parts = split(rest, to);
+        root = merge(merge(parts[0], moved), parts[1]);
+    }
+
+    public void clear() {
+        root = null;
+    }
+
+    /**
+     * Drop every entry whose encoding equals an earlier one, returning how many were removed
+     */
+    public int dedupe() {
+        List<Node> nodes = nodes();
+        Set<ByteBuffer> seen = new HashSet<>(nodes.size() * 2);
+        List<Node> kept = new ArrayList<>(nodes.size());
+        for (Node n : nodes) {
+            if (seen.add(ByteBuffer.wrap(n.data))) {
+                kept.add(n);
+            }
+        }
+        root = build(kept);
+        return nodes.size() - kept.size();
+    }
+
+    public void shuffle(Random random) {
+        List<Node> nodes = nodes();
+        for (int i = nodes.size() - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            Node t = nodes.get(i);
+            nodes.set(i, nodes.get(j));
+            nodes.set(j, t);
+        }
+        root = build(nodes);
+    }
+
+    private List<Node> nodes() {
+        List<Node> out = new ArrayList<>(size());
+        ArrayDeque<Node> stack = new ArrayDeque<>();
+        Node n = root;
+        while (n != null || !stack.isEmpty()) {
+            while (n != null) {
+                stack.push(n);
+                n = n.left;
+            }
+            n = stack.pop();
+            out.add(n);
+            n = n.right;
+        }
+        return out;
+    }
+
+    /**
+     * Build a balanced tree over the nodes in order. Fresh random priorities are handed out level by level in
+     * descending order, so the result is a valid treap that later random inserts keep balanced.
+     */
+    private static Node build(List<Node> nodes) {
+        Node built = link(nodes, 0, nodes.size());
+        if (built == null) return null;
+
+        int[] priorities = ThreadLocalRandom.current().ints(nodes.size()).toArray();
+        Arrays.sort(priorities);
+
+        int next = priorities.length - 1;
+        ArrayDeque<Node> level = new ArrayDeque<>();
+        level.add(built);
+        while (!level.isEmpty()) {
+            Node n = level.poll();
+            n.priority = priorities[next--];
+            if (n.left != null) level.add(n.left);
+            if (n.right != null) level.add(n.right);
+        }
+        return built;
+    }
+
+    private static Node link(List<Node> nodes, int from, int to) {
+        if (from >= to) return null;
+        int mid = (from + to) >>> 1;
+        Node n = nodes.get(mid);
+        n.left = link(nodes, from, mid);
+        n.right = link(nodes, mid + 1, to);
+        n.update();
+        return n;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException(String.format("Index %d out of bounds for %d tracks", index, size()));
+        }
+    }
+
+    private static void checkPosition(int index, int size) {
+        if (index < 0 || index > size) {
+            throw new IndexOutOfBoundsException(String.format("Position %d out of bounds for %d tracks", index, size));
+        }
+    }
+}
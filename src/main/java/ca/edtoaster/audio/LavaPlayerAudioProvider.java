@@ -1,33 +1,142 @@
 package ca.edtoaster.audio;
 
+import ca.edtoaster.metrics.BotMetrics;
 import com.sedmelluq.discord.lavaplayer.format.StandardAudioDataFormats;
 import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackState;
 import com.sedmelluq.discord.lavaplayer.track.playback.MutableAudioFrame;
 import discord4j.voice.AudioProvider;
+import lombok.Getter;
+import reactor.util.annotation.Nullable;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 public final class LavaPlayerAudioProvider extends AudioProvider {
 
-    private final AudioPlayer player;
+    // swapped by the scheduler when a preloaded track takes over
+    private volatile AudioPlayer player;
     private final MutableAudioFrame frame = new MutableAudioFrame();
 
-    public LavaPlayerAudioProvider(final AudioPlayer player) {
+    @Getter
+    private final PlaybackStats stats = new PlaybackStats();
+    @Getter
+    private final boolean direct;
+
+    // frames of the playing track are recorded into the cache if it plays through from the start
+    @Nullable
+    private final OpusFrameCache frameCache;
+    // set and cleared on the send thread, also cleared when playback is stopped
+    private final AtomicReference<FrameRecorder> recorder = new AtomicReference<>();
+    private AudioTrack consideredTrack; // send thread only, the last track a recording was tried for
+
+    // set when a track ended and the next one was started, cleared on the first frame of the next one
+    private volatile String transitionKind;
+    private volatile long transitionStartedAt;
+
+    /**
+     * @param direct whether frames go through a direct buffer, which the voice connection can send without
+     *               first copying it off the heap
+     * @param frameCache where played tracks are recorded, or null to not record them
+     */
+    public LavaPlayerAudioProvider(final AudioPlayer player, boolean direct, @Nullable OpusFrameCache frameCache) {
         // Allocate a ByteBuffer for Discord4J's AudioProvider to hold audio data for Discord
-        super(ByteBuffer.allocate(StandardAudioDataFormats.DISCORD_OPUS.maximumChunkSize()));
+        super(direct
+                ? ByteBuffer.allocateDirect(StandardAudioDataFormats.DISCORD_OPUS.maximumChunkSize())
+                : ByteBuffer.allocate(StandardAudioDataFormats.DISCORD_OPUS.maximumChunkSize()));
         // Set LavaPlayer's MutableAudioFrame to use the same buffer as the one we just allocated
         frame.setBuffer(getBuffer());
         this.player = player;
+        this.direct = direct;
+        this.frameCache = frameCache;
+    }
+
+    public void setPlayer(AudioPlayer player) {
+        this.player = player;
+    }
+
+    /**
+     * Time from now until the next frame is provided, recorded as the track transition gap
+     */
+    public void markTransition(String kind) {
+        this.transitionStartedAt = System.nanoTime();
+        this.transitionKind = kind;
     }
 
     @Override
     public boolean provide() {
+        long start = System.nanoTime();
+        AudioPlayer current = player;
         // AudioPlayer writes audio data to its AudioFrame
-        final boolean didProvide = player.provide(frame);
+        boolean didProvide = current.provide(frame);
+        // the previous track ended inside provide and a preloaded player took over, its frame is ready now
+        if (!didProvide && current != player) {
+            current = player;
+            didProvide = current.provide(frame);
+        }
         // If audio was provided, flip from write-mode to read-mode
         if (didProvide) {
             getBuffer().flip();
+            recordTransition();
+        }
+        if (frameCache != null) {
+            recordFrame(current.getPlayingTrack(), didProvide);
         }
+        stats.record(System.nanoTime() - start, didProvide, !didProvide && isUnderrun(current));
         return didProvide;
     }
-}
\ No newline at end of file
+
+    /**
+     * Nothing was buffered even though the track is past loading and not paused
+     */
+    private static boolean isUnderrun(AudioPlayer player) {
+        AudioTrack track = player.getPlayingTrack();
+        return track != null && !player.isPaused() && track.getState() == AudioTrackState.PLAYING;
+    }
+
+    private void recordFrame(@Nullable AudioTrack track, boolean didProvide) {
+        FrameRecorder current = recorder.get();
+        if (current != null && current.getTrack() != track) {
+            finishRecording(current);
+            current = null;
+        }
+        if (!didProvide || track == null) return;
+
+        if (current == null && track != consideredTrack) {
+            consideredTrack = track;
+            current = frameCache.startRecording(track, frame.getVolume());
+            if (current != null) recorder.set(current);
+        }
+        if (current != null && !current.append(getBuffer(), frame.getTimecode(), frame.getVolume())) {
+            // seeked, restarted part way, had its volume changed or was stopped
+            if (recorder.compareAndSet(current, null)) frameCache.abandon(current);
+        }
+    }
+
+    private void finishRecording(FrameRecorder current) {
+        if (!recorder.compareAndSet(current, null)) return;
+        if (current.isComplete()) {
+            frameCache.commit(current);
+        } else {
+            frameCache.abandon(current);
+        }
+    }
+
+    /**
+     * Drop the recording in progress, the send thread may never get to it once the voice connection is gone
+     */
+    public void stopRecording() {
+        FrameRecorder current = recorder.getAndSet(null);
+        if (current != null) frameCache.abandon(current);
+    }
+
+    private void recordTransition() {
+        String kind = transitionKind;
+        if (kind == null) return;
+        transitionKind = null;
+        BotMetrics.timer("toastbot.music.transition.gap", "mode", kind)
+                .record(System.nanoTime() - transitionStartedAt, TimeUnit.NANOSECONDS);
+    }
+}
@@ -20,6 +20,25 @@ public interface MusicPlayer {
 
     boolean isQueueEmpty();
     void clearQueue();
+    int getQueueSize();
+
+    /*
+    Positional queue edits, indexes start at 0
+     */
+
+    AudioTrackInfo removeTrack(int index);
+
+    /**
+     * Remove tracks in [from, to), and return how many were removed
+     */
+    int removeTracks(int from, int to);
+    void moveTrack(int from, int to);
+
+    /**
+     * Remove repeats of tracks queued earlier, and return how many were removed
+     */
+    int dedupeQueue();
+    void shuffleQueue();
 
     /**
      * Queue up a song, then return all songs that were added
@@ -0,0 +1,273 @@
+package ca.edtoaster.audio;
+
+import ca.edtoaster.metrics.BotMetrics;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import io.micrometer.core.instrument.Counter;
+import lombok.extern.log4j.Log4j2;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Opus frames of tracks that were played to the end, one segment file per track and volume. Later plays,
+ * restarts and seeks of the track at that volume are served from the memory mapped segment, skipping the
+ * fetch and the transcode. Segments are evicted least recently played first once the directory is full.
+ * Segments are mapped when they are stored or indexed, so wrapping a track does no file I/O.
+ */
+@Log4j2
+public class OpusFrameCache {
+    private static final String FILE_SUFFIX = ".opus";
+    // recordings stream to disk, this only keeps very long tracks from filling the cache on their own
+    private static final long MAX_RECORD_MILLIS = TimeUnit.MINUTES.toMillis(15);
+    // each recording holds a file and a writer, past this many guilds new tracks are not recorded
+    private static final int MAX_RECORDINGS = 16;
+
+    @Nullable
+    private final Path directory;
+    private final long maxBytes;
+
+    private record Entry(long size, OpusSegment segment) {
+    }
+
+    // file name to mapped segment, in access order so the eldest entry is the least recently played; guarded by itself
+    private final LinkedHashMap<String, Entry> files = new LinkedHashMap<>(64, 0.75f, true);
+    private long totalBytes; // guarded by files
+    // segments being recorded right now, so two guilds playing the same track only record it once; guarded by itself
+    private final Set<String> recording = new HashSet<>();
+    private volatile boolean recordingEnabled = true;
+
+    private final Counter hits = BotMetrics.REGISTRY.counter("toastbot.music.frame.cache", "result", "hit");
+    private final Counter misses = BotMetrics.REGISTRY.counter("toastbot.music.frame.cache", "result", "miss");
+    private final Counter stored = BotMetrics.REGISTRY.counter("toastbot.music.frame.cache.stored");
+    private final Counter evicted = BotMetrics.REGISTRY.counter("toastbot.music.frame.cache.evicted");
+
+    /**
+     * @param directory where segments are kept, or null to disable the cache
+     */
+    public OpusFrameCache(@Nullable Path directory, long maxBytes) {
+        this.directory = maxBytes > 0 ? directory : null;
+        this.maxBytes = maxBytes;
+
+        BotMetrics.REGISTRY.gauge("toastbot.music.frame.cache.bytes", this, OpusFrameCache::getBytes);
+
+        if (this.directory != null) {
+            Mono.fromRunnable(this::indexDirectory).subscribeOn(Schedulers.boundedElastic()).subscribe();
+        }
+    }
+
+    public long getBytes() {
+        synchronized (files) {
+            return totalBytes;
+        }
+    }
+
+    /**
+     * The track played from its cached frames when it was recorded at this volume, otherwise the track itself
+     */
+    public AudioTrack wrap(AudioTrack track, int volume) {
+        if (directory == null || track instanceof CachedOpusTrack || track.getInfo().isStream) return track;
+
+        String name = fileName(track, volume);
+        Entry entry;
+        synchronized (files) {
+            entry = files.get(name);
+        }
+        if (entry == null) {
+            misses.increment();
+            return track;
+        }
+
+        hits.increment();
+        // the play order survives restarts through the modification time, touched off the caller's thread
+        Mono.fromRunnable(() -> touch(name)).subscribeOn(Schedulers.boundedElastic()).subscribe();
+        CachedOpusTrack cached = new CachedOpusTrack(track, entry.segment(), volume);
+        // restored tracks resume part way through
+        if (track.getPosition() > 0) cached.setPosition(track.getPosition());
+        return cached;
+    }
+
+    /**
+     * Pause or resume recording new tracks, tracks already being recorded carry on
+     */
+    public void setRecording(boolean enabled) {
+        this.recordingEnabled = enabled;
+    }
+
+    /**
+     * Start recording a track that is about to play from the start, or null when it does not need recording
+     */
+    @Nullable
+    FrameRecorder startRecording(AudioTrack track, int volume) {
+        if (directory == null || !recordingEnabled || track instanceof CachedOpusTrack || track.getInfo().isStream
+                || track.getDuration() > MAX_RECORD_MILLIS) {
+            return null;
+        }
+
+        String name = fileName(track, volume);
+        synchronized (files) {
+            if (files.containsKey(name)) return null;
+        }
+        synchronized (recording) {
+            if (recording.size() >= MAX_RECORDINGS || !recording.add(name)) return null;
+        }
+        return new FrameRecorder(name, track, volume, directory.resolve(name + ".tmp"));
+    }
+
+    /**
+     * Drop an unfinished recording along with what it wrote so far
+     */
+    void abandon(FrameRecorder recorder) {
+        recorder.close()
+                .onErrorResume(e -> Mono.empty())
+                .then(Mono.fromRunnable(() -> deleteFile(recorder.getFile().getFileName().toString())))
+                .doFinally(s -> finished(recorder))
+                .subscribe();
+    }
+
+    /**
+     * Store a finished recording, off the voice send thread
+     */
+    void commit(FrameRecorder recorder) {
+        recorder.close()
+                .then(Mono.fromRunnable(() -> store(recorder)))
+                .doOnError(e -> {
+                    log.error(String.format("Could not store frames for %s", recorder.getTrack().getIdentifier()), e);
+                    deleteFile(recorder.getFile().getFileName().toString());
+                })
+                .onErrorResume(e -> Mono.empty())
+                .doFinally(s -> finished(recorder))
+                .subscribe();
+    }
+
+    private void finished(FrameRecorder recorder) {
+        synchronized (recording) {
+            recording.remove(recorder.getName());
+        }
+    }
+
+    private void store(FrameRecorder recorder) {
+        Path file = directory.resolve(recorder.getName());
+        try {
+            OpusSegment.finish(recorder.getFile(), recorder.getFrameCount());
+            Files.move(recorder.getFile(), file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            add(recorder.getName(), new Entry(Files.size(file), OpusSegment.map(file)));
+            stored.increment();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void add(String name, Entry entry) {
+        List<String> evict = new ArrayList<>();
+        synchronized (files) {
+            Entry previous = files.put(name, entry);
+            if (previous != null) totalBytes -= previous.size();
+            totalBytes += entry.size();
+
+            Iterator<Map.Entry<String, Entry>> eldest = files.entrySet().iterator();
+            while (totalBytes > maxBytes && eldest.hasNext()) {
+                Map.Entry<String, Entry> e = eldest.next();
+                if (e.getKey().equals(name)) continue;
+                totalBytes -= e.getValue().size();
+                eldest.remove();
+                evict.add(e.getKey());
+            }
+        }
+
+        // segments that are playing stay mapped, so deleting them underneath is fine
+        for (String victim : evict) {
+            deleteFile(victim);
+            evicted.increment();
+        }
+    }
+
+    private void touch(String name) {
+        try {
+            Files.setLastModifiedTime(directory.resolve(name), FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // evicted in the meantime, or the order is just a little off after a restart
+            log.debug(String.format("Could not touch frame cache segment %s", name), e);
+        }
+    }
+
+    private void deleteFile(String name) {
+        try {
+            Files.deleteIfExists(directory.resolve(name));
+        } catch (IOException e) {
+            log.warn(String.format("Could not delete frame cache segment %s", name), e);
+        }
+    }
+
+    /**
+     * Pick up segments from previous runs, oldest played first, and drop leftovers from interrupted writes
+     */
+    private void indexDirectory() {
+        if (!Files.isDirectory(directory)) return;
+
+        try (Stream<Path> listing = Files.list(directory)) {
+            List<Path> segments = new ArrayList<>();
+            for (Path file : (Iterable<Path>) listing::iterator) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(FILE_SUFFIX)) {
+                    segments.add(file);
+                } else if (name.endsWith(FILE_SUFFIX + ".tmp")) {
+                    Files.deleteIfExists(file);
+                }
+            }
+
+            segments.sort(Comparator.comparing(OpusFrameCache::lastModified));
+            for (Path file : segments) {
+                String name = file.getFileName().toString();
+                try {
+                    add(name, new Entry(Files.size(file), OpusSegment.map(file)));
+                } catch (IOException e) {
+                    log.warn(String.format("Dropping unreadable frame cache segment %s", name), e);
+                    deleteFile(name);
+                }
+            }
+            log.info(String.format("Frame cache holds %d segments, %d bytes", segments.size(), getBytes()));
+        } catch (IOException e) {
+            log.error("Could not index frame cache in " + directory, e);
+        }
+    }
+
+    private static FileTime lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    private static String fileName(AudioTrack track, int volume) {
+        String source = track.getSourceManager() == null ? "unknown" : track.getSourceManager().getSourceName();
+        String key = source + ":" + track.getIdentifier();
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest) + "-" + volume + FILE_SUFFIX;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package ca.edtoaster.audio;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A track's Opus frames in one memory mapped file: every frame behind its length, then the offset of every
+ * frame, the frame count and a magic number. The index trails the frames so a recording can be streamed to
+ * disk as it plays. Frames are 20ms each, so frame i starts at i * 20ms and seeking is an index lookup.
+ */
+final class OpusSegment {
+    static final int FRAME_MILLIS = 20;
+    static final int MAX_FRAME_BYTES = 0xFFFF;
+
+    private static final int FILE_MAGIC = 0x4F504332; // OPC2
+    private static final int TRAILER_BYTES = 2 * Integer.BYTES;
+
+    private final ByteBuffer file;
+    private final int frameCount;
+    private final int indexStart;
+
+    private OpusSegment(ByteBuffer file, int frameCount, int indexStart) {
+        this.file = file;
+        this.frameCount = frameCount;
+        this.indexStart = indexStart;
+    }
+
+    static OpusSegment map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // the mapping outlives the channel, and the file may even be evicted while it plays
+            ByteBuffer file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int capacity = file.capacity();
+            if (capacity < TRAILER_BYTES || file.getInt(capacity - Integer.BYTES) != FILE_MAGIC) {
+                throw new IOException(String.format("%s is not a frame cache segment", path));
+            }
+
+            int frameCount = file.getInt(capacity - TRAILER_BYTES);
+            long indexStart = capacity - TRAILER_BYTES - (long) frameCount * Integer.BYTES;
+            if (frameCount < 0 || indexStart < 0) {
+                throw new IOException(String.format("%s is truncated", path));
+            }
+            OpusSegment segment = new OpusSegment(file, frameCount, (int) indexStart);
+            if (frameCount > 0) {
+                int last = segment.offset(frameCount - 1);
+                if (last < Short.BYTES || last > indexStart || last + segment.length(frameCount - 1) != indexStart) {
+                    throw new IOException(String.format("%s is truncated", path));
+                }
+            }
+            return segment;
+        }
+    }
+
+    /**
+     * Frame as it is streamed to the segment file, behind its length
+     */
+    static void putFrame(ByteBuffer out, ByteBuffer frame) {
+        int length = frame.remaining();
+        out.putShort((short) length);
+        out.put(out.position(), frame, frame.position(), length);
+        out.position(out.position() + length);
+    }
+
+    /**
+     * Append the index to a file holding exactly frameCount frames written with putFrame
+     */
+    static void finish(Path path, int frameCount) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(String.format("%s is too large for a frame cache segment", path));
+            }
+            ByteBuffer frames = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel.position(size))));
+            int position = 0;
+            for (int i = 0; i < frameCount; i++) {
+                if (position + Short.BYTES > size) {
+                    throw new IOException(String.format("%s holds fewer than %d frames", path, frameCount));
+                }
+                out.writeInt(position + Short.BYTES);
+                position += Short.BYTES + Short.toUnsignedInt(frames.getShort(position));
+            }
+            if (position != size) {
+                throw new IOException(String.format("%s does not hold exactly %d frames", path, frameCount));
+            }
+            out.writeInt(frameCount);
+            out.writeInt(FILE_MAGIC);
+            out.flush();
+        }
+    }
+
+    int getFrameCount() {
+        return frameCount;
+    }
+
+    private int offset(int index) {
+        return file.getInt(indexStart + index * Integer.BYTES);
+    }
+
+    private int length(int index) {
+        return Short.toUnsignedInt(file.getShort(offset(index) - Short.BYTES));
+    }
+
+    byte[] frame(int index) {
+        byte[] frame = new byte[length(index)];
+        file.get(offset(index), frame);
+        return frame;
+    }
+}
@@ -0,0 +1,63 @@
+package ca.edtoaster.audio;
+
+import ca.edtoaster.metrics.BotMetrics;
+import io.micrometer.core.instrument.Timer;
+import lombok.Getter;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frame level counters for one guild's audio. Discord4J asks for a frame every 20ms; a miss is a request that
+ * found nothing buffered while a track was playing, which is heard as a stutter. Written only by the voice
+ * send thread, so plain volatile fields are enough.
+ */
+@Getter
+public class PlaybackStats {
+    // shared by every guild, per guild latency is kept as a max only
+    private static final Timer PROVIDE_LATENCY =
+            BotMetrics.timer("toastbot.music.provide", Duration.ofNanos(1000), Duration.ofMillis(100));
+
+    private volatile long calls;
+    private volatile long provided;
+    private volatile long missed;
+    // runs of consecutive misses, a long one is a gap rather than a click
+    private volatile long bursts;
+    private volatile long longestBurst;
+    private volatile long maxProvideNanos;
+    private volatile long totalProvideNanos;
+
+    private long currentBurst; // send thread only
+
+    void record(long provideNanos, boolean didProvide, boolean underrun) {
+        PROVIDE_LATENCY.record(provideNanos, TimeUnit.NANOSECONDS);
+        calls++;
+        totalProvideNanos += provideNanos;
+        if (provideNanos > maxProvideNanos) maxProvideNanos = provideNanos;
+
+        if (didProvide) {
+            provided++;
+            currentBurst = 0;
+        } else if (underrun) {
+            missed++;
+            if (++currentBurst == 1) bursts++;
+            if (currentBurst > longestBurst) longestBurst = currentBurst;
+        }
+    }
+
+    /**
+     * Share of frames that were due but missed
+     */
+    public double getMissRatio() {
+        long due = provided + missed;
+        return due == 0 ? 0 : (double) missed / due;
+    }
+
+    public double getMeanProvideMicros() {
+        return calls == 0 ? 0 : totalProvideNanos / 1000.0 / calls;
+    }
+
+    public double getMaxProvideMicros() {
+        return maxProvideNanos / 1000.0;
+    }
+}
@@ -0,0 +1,23 @@
+package ca.edtoaster.audio;
+
+import reactor.util.annotation.Nullable;
+
+import java.util.List;
+
+/**
+ * Everything needed to pick a guild's playback back up after a restart
+ *
+ * @param current the playing track, encoded, or null when nothing was playing
+ * @param position position in the playing track
+ */
+public record PlayerSnapshot(long voiceChannelId,
+                             int volume,
+                             boolean paused,
+                             @Nullable byte[] current,
+                             long position,
+                             List<QueuedTrack> queue) {
+
+    public PlayerSnapshot withPosition(long position) {
+        return new PlayerSnapshot(voiceChannelId, volume, paused, current, position, queue);
+    }
+}
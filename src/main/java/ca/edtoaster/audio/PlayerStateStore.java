@@ -0,0 +1,400 @@
+package ca.edtoaster.audio;
+
+import ca.edtoaster.metrics.BotMetrics;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.log4j.Log4j2;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+/**
+ * Append only log of every connected guild's player state, so playback survives a restart or a crash.
+ * Changes only mark a guild dirty; a single writer appends at most one state record per guild per flush,
+ * plus small position records for guilds that are just playing along. The log is rewritten with only the
+ * latest state of each guild once it grows past twice its compacted size.
+ */
+@Log4j2
+public class PlayerStateStore implements Disposable {
+    private static final int FILE_MAGIC = 0x50535331; // PSS1
+
+    private static final byte STATE = 1;
+    private static final byte POSITION = 2;
+    private static final byte CLEAR = 3;
+
+    private static final Duration FLUSH_INTERVAL = Duration.ofSeconds(1);
+    // positions alone are written every few flushes, a restart resumes at most this many flushes back
+    private static final int POSITION_FLUSHES = 5;
+    private static final long MIN_COMPACT_BYTES = 4L * 1024 * 1024;
+    private static final int MAX_RECORD_BYTES = 256 * 1024 * 1024;
+    // saved guilds nobody came back to by then are cleared, so compaction stops carrying them
+    private static final Duration UNCLAIMED_GRACE = Duration.ofMinutes(30);
+
+    private record Source(Supplier<PlayerSnapshot> snapshot, LongSupplier position) {
+    }
+
+    @Nullable
+    private final Path file;
+
+    private final Map<Long, Source> sources = new ConcurrentHashMap<>();
+    private final Set<Long> dirty = ConcurrentHashMap.newKeySet();
+    private final Set<Long> cleared = ConcurrentHashMap.newKeySet();
+    // read at startup and not yet picked up by their guild
+    private final Map<Long, PlayerSnapshot> saved = new ConcurrentHashMap<>();
+
+    // what the log currently says about each guild, guarded by this like everything below
+    private final Map<Long, PlayerSnapshot> written = new HashMap<>();
+    private FileChannel channel;
+    private long compactedBytes;
+    private long flushes;
+
+    private final Scheduler writer;
+    private final Disposable flushTask;
+    private final Disposable expireTask;
+
+    private final Timer flushTimer = BotMetrics.timer("toastbot.music.state.flush");
+    private final Counter bytesWritten = BotMetrics.REGISTRY.counter("toastbot.music.state.written");
+
+    /**
+     * @param file where the log lives, or null to not persist anything
+     */
+    public PlayerStateStore(@Nullable Path file) {
+        this.file = file;
+        if (file == null) {
+            this.writer = null;
+            this.flushTask = null;
+            this.expireTask = null;
+            return;
+        }
+
+        load();
+        try {
+            compact();
+        } catch (IOException e) {
+            log.error(String.format("Could not open player state log %s, player state will not be saved", file), e);
+        }
+
+        this.writer = Schedulers.newSingle("player-state");
+        this.flushTask = Flux.interval(FLUSH_INTERVAL, FLUSH_INTERVAL, writer).subscribe(t -> flush(false));
+        this.expireTask = Mono.delay(UNCLAIMED_GRACE, writer).subscribe(t -> expireUnclaimed());
+        Runtime.getRuntime().addShutdownHook(new Thread(this::dispose, "player-state-shutdown"));
+    }
+
+    /**
+     * State saved for this guild by a previous run, still there for the taking
+     */
+    public Optional<PlayerSnapshot> peekSaved(long guildId) {
+        return Optional.ofNullable(saved.get(guildId));
+    }
+
+    /**
+     * State saved for this guild by a previous run, handed out once
+     */
+    public Optional<PlayerSnapshot> takeSaved(long guildId) {
+        return Optional.ofNullable(saved.remove(guildId));
+    }
+
+    private void expireUnclaimed() {
+        int expired = 0;
+        for (Iterator<Long> it = saved.keySet().iterator(); it.hasNext(); ) {
+            long guildId = it.next();
+            it.remove();
+            // a guild that attached in the meantime owns its record again
+            if (!sources.containsKey(guildId)) {
+                cleared.add(guildId);
+                expired++;
+            }
+        }
+        if (expired > 0) {
+            log.info(String.format("Dropping saved players of %d guilds that were not resumed", expired));
+        }
+    }
+
+    /**
+     * Start saving a guild's player. The snapshot is taken on the writer after changes, the position is polled.
+     */
+    public void attach(long guildId, Supplier<PlayerSnapshot> snapshot, LongSupplier position) {
+        if (file == null) return;
+        cleared.remove(guildId);
+        sources.put(guildId, new Source(snapshot, position));
+        dirty.add(guildId);
+    }
+
+    /**
+     * The guild's queue or player changed, cheap enough to call on every change
+     */
+    public void markDirty(long guildId) {
+        if (file == null || !sources.containsKey(guildId)) return;
+        dirty.add(guildId);
+    }
+
+    /**
+     * Stop saving a guild's player and forget what was saved, it will not be restored
+     */
+    public void detach(long guildId) {
+        if (file == null) return;
+        sources.remove(guildId);
+        saved.remove(guildId);
+        cleared.add(guildId);
+    }
+
+    @Override
+    public synchronized void dispose() {
+        if (file == null || channel == null) return;
+        flushTask.dispose();
+        expireTask.dispose();
+        // last chance, so every position is written no matter when it was last written
+        flush(true);
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.error("Could not close the player state log", e);
+        }
+        channel = null;
+        writer.dispose();
+    }
+
+    @Override
+    public boolean isDisposed() {
+        return file == null || channel == null;
+    }
+
+    private synchronized void flush(boolean allPositions) {
+        if (channel == null) return;
+        long start = System.nanoTime();
+        boolean positions = allPositions || ++flushes % POSITION_FLUSHES == 0;
+
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        try {
+            for (Iterator<Long> it = cleared.iterator(); it.hasNext(); ) {
+                long guildId = it.next();
+                it.remove();
+                if (written.remove(guildId) != null) {
+                    appendRecord(batch, CLEAR, guildId, new byte[0]);
+                }
+            }
+
+            Set<Long> wroteState = new HashSet<>();
+            for (Iterator<Long> it = dirty.iterator(); it.hasNext(); ) {
+                long guildId = it.next();
+                it.remove();
+                PlayerSnapshot snapshot = takeSnapshot(guildId);
+                if (snapshot == null) continue;
+                appendRecord(batch, STATE, guildId, encodeState(snapshot));
+                written.put(guildId, snapshot);
+                wroteState.add(guildId);
+            }
+
+            if (positions) {
+                for (Map.Entry<Long, Source> e : sources.entrySet()) {
+                    long guildId = e.getKey();
+                    PlayerSnapshot last = written.get(guildId);
+                    if (last == null || last.current() == null || wroteState.contains(guildId)) continue;
+
+                    long position = e.getValue().position().getAsLong();
+                    if (position == last.position()) continue;
+                    appendRecord(batch, POSITION, guildId, encodePosition(position));
+                    written.put(guildId, last.withPosition(position));
+                }
+            }
+
+            if (batch.size() == 0) return;
+            channel.write(ByteBuffer.wrap(batch.toByteArray()));
+            channel.force(false);
+            bytesWritten.increment(batch.size());
+
+            if (channel.size() > Math.max(MIN_COMPACT_BYTES, 2 * compactedBytes)) {
+                compact();
+            }
+        } catch (IOException e) {
+            log.error("Could not write to the player state log", e);
+        } finally {
+            flushTimer.record(Duration.ofNanos(System.nanoTime() - start));
+        }
+    }
+
+    @Nullable
+    private PlayerSnapshot takeSnapshot(long guildId) {
+        Source source = sources.get(guildId);
+        if (source == null) return null;
+        try {
+            return source.snapshot().get();
+        } catch (RuntimeException e) {
+            log.error(String.format("Could not snapshot the player of guild %d", guildId), e);
+            return null;
+        }
+    }
+
+    /**
+     * Rewrite the log with only the latest state of each guild
+     */
+    private synchronized void compact() throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.createDirectories(file.getParent());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new DataOutputStream(out).writeInt(FILE_MAGIC);
+        for (Map.Entry<Long, PlayerSnapshot> e : written.entrySet()) {
+            appendRecord(out, STATE, e.getKey(), encodeState(e.getValue()));
+        }
+
+        try (FileChannel tmpChannel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            tmpChannel.write(ByteBuffer.wrap(out.toByteArray()));
+            tmpChannel.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        if (channel != null) channel.close();
+        channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        compactedBytes = out.size();
+        log.info(String.format("Compacted player state log to %d guilds, %d bytes", written.size(), compactedBytes));
+    }
+
+    /**
+     * Replay the log into the saved states. A crash can leave a partial record at the end, everything before it
+     * is still used.
+     */
+    private void load() {
+        if (!Files.exists(file)) return;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != FILE_MAGIC) {
+                log.warn(String.format("%s is not a player state log, ignoring it", file));
+                return;
+            }
+
+            while (true) {
+                int type = in.read();
+                if (type < 0) break;
+
+                long guildId = in.readLong();
+                int length = in.readInt();
+                if (length < 0 || length > MAX_RECORD_BYTES) {
+                    log.warn("Player state log ends in a corrupt record, ignoring the rest");
+                    break;
+                }
+                byte[] payload = in.readNBytes(length);
+                if (payload.length != length) throw new EOFException();
+                if (in.readInt() != checksum((byte) type, guildId, payload)) {
+                    log.warn("Player state log ends in a corrupt record, ignoring the rest");
+                    break;
+                }
+                apply((byte) type, guildId, payload);
+            }
+        } catch (EOFException e) {
+            log.warn("Player state log ends in a partial record, ignoring it");
+        } catch (IOException e) {
+            log.error(String.format("Could not read player state log %s", file), e);
+        }
+
+        written.putAll(saved);
+        log.info(String.format("Read saved players for %d guilds", saved.size()));
+    }
+
+    private void apply(byte type, long guildId, byte[] payload) throws IOException {
+        switch (type) {
+            case STATE -> saved.put(guildId, decodeState(payload));
+            case POSITION -> {
+                long position = new DataInputStream(new ByteArrayInputStream(payload)).readLong();
+                saved.computeIfPresent(guildId, (id, snapshot) -> snapshot.withPosition(position));
+            }
+            case CLEAR -> saved.remove(guildId);
+            default -> log.warn(String.format("Skipping unknown player state record type %d", type));
+        }
+    }
+
+    private static void appendRecord(ByteArrayOutputStream out, byte type, long guildId, byte[] payload) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeByte(type);
+        data.writeLong(guildId);
+        data.writeInt(payload.length);
+        data.write(payload);
+        data.writeInt(checksum(type, guildId, payload));
+    }
+
+    private static int checksum(byte type, long guildId, byte[] payload) {
+        CRC32 crc = new CRC32();
+        ByteBuffer header = ByteBuffer.allocate(Byte.BYTES + Long.BYTES);
+        header.put(type).putLong(guildId).flip();
+        crc.update(header);
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    private static byte[] encodePosition(long position) {
+        return ByteBuffer.allocate(Long.BYTES).putLong(position).array();
+    }
+
+    private static byte[] encodeState(PlayerSnapshot snapshot) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(snapshot.voiceChannelId());
+        out.writeInt(snapshot.volume());
+        out.writeBoolean(snapshot.paused());
+        out.writeLong(snapshot.position());
+
+        byte[] current = snapshot.current();
+        out.writeInt(current == null ? -1 : current.length);
+        if (current != null) out.write(current);
+
+        out.writeInt(snapshot.queue().size());
+        for (QueuedTrack track : snapshot.queue()) {
+            out.writeLong(track.duration());
+            out.writeBoolean(track.stream());
+            out.writeInt(track.data().length);
+            out.write(track.data());
+        }
+        return bytes.toByteArray();
+    }
+
+    private static PlayerSnapshot decodeState(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        long voiceChannelId = in.readLong();
+        int volume = in.readInt();
+        boolean paused = in.readBoolean();
+        long position = in.readLong();
+
+        int currentLength = in.readInt();
+        byte[] current = currentLength < 0 ? null : in.readNBytes(currentLength);
+
+        int count = in.readInt();
+        List<QueuedTrack> queue = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long duration = in.readLong();
+            boolean stream = in.readBoolean();
+            queue.add(new QueuedTrack(in.readNBytes(in.readInt()), duration, stream));
+        }
+        return new PlayerSnapshot(voiceChannelId, volume, paused, current, position, queue);
+    }
+}
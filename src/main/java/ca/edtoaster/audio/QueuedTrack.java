@@ -0,0 +1,7 @@
+package ca.edtoaster.audio;
+
+/**
+ * A queue entry as it is stored, with what the queue needs to know about it without decoding it
+ */
+public record QueuedTrack(byte[] data, long duration, boolean stream) {
+}
@@ -0,0 +1,35 @@
+package ca.edtoaster.audio;
+
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager;
+import com.sedmelluq.discord.lavaplayer.tools.io.MessageInput;
+import com.sedmelluq.discord.lavaplayer.tools.io.MessageOutput;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.DecodedTrackHolder;
+import lombok.RequiredArgsConstructor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Converts tracks to and from lavaplayer's compact binary form. A decoded track is a fresh instance,
+ * ready to be played.
+ */
+@RequiredArgsConstructor
+public class TrackCodec {
+    private final AudioPlayerManager manager;
+
+    public byte[] encode(AudioTrack track) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        manager.encodeTrack(new MessageOutput(out), track);
+        return out.toByteArray();
+    }
+
+    public AudioTrack decode(byte[] data) throws IOException {
+        DecodedTrackHolder holder = manager.decodeTrack(new MessageInput(new ByteArrayInputStream(data)));
+        if (holder == null || holder.decodedTrack == null) {
+            throw new IOException("Track could not be decoded");
+        }
+        return holder.decodedTrack;
+    }
+}
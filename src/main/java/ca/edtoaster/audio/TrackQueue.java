@@ -0,0 +1,216 @@
+package ca.edtoaster.audio;
+
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackInfo;
+import lombok.extern.log4j.Log4j2;
+import reactor.util.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Queue of tracks kept in their encoded form. A queued track costs a single small byte array instead of a
+ * track object graph, and is only turned back into a track when it is about to play or be shown.
+ * Positional operations are O(log n), see {@link IndexedTrackList}.
+ * Safe to use from the player's threads and from interactions at the same time.
+ */
+@Log4j2
+public class TrackQueue {
+    private final TrackCodec codec;
+
+    // guarded by this
+    private final IndexedTrackList entries = new IndexedTrackList();
+
+    public TrackQueue(TrackCodec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * @return whether the track could be queued, tracks that cannot be encoded are dropped
+     */
+    public boolean offer(AudioTrack track) {
+        byte[] data;
+        try {
+            data = codec.encode(track);
+        } catch (IOException e) {
+            log.error(String.format("Could not queue track %s", track.getIdentifier()), e);
+            return false;
+        }
+
+        AudioTrackInfo info = track.getInfo();
+        synchronized (this) {
+            entries.add(data, info.length, info.isStream);
+        }
+        return true;
+    }
+
+    /**
+     * Take the next playable track off the queue, skipping entries that no longer decode
+     */
+    @Nullable
+    public AudioTrack poll() {
+        while (true) {
+            byte[] data;
+            synchronized (this) {
+                if (entries.isEmpty()) return null;
+                data = entries.removeFirst();
+            }
+
+            try {
+                return codec.decode(data);
+            } catch (IOException e) {
+                log.error("Dropping a queued track that could not be decoded", e);
+            }
+        }
+    }
+
+    /**
+     * Put back entries taken from {@link #entries()}, after anything already queued
+     */
+    public synchronized void addAll(List<QueuedTrack> tracks) {
+        for (QueuedTrack track : tracks) {
+            entries.add(track.data(), track.duration(), track.stream());
+        }
+    }
+
+    /**
+     * Everything queued, still encoded. Entries are never modified, so they can be kept around and written out.
+     */
+    public synchronized List<QueuedTrack> entries() {
+        return entries.entries();
+    }
+
+    /**
+     * Head of the queue as queued, along with a track decoded from it
+     */
+    public record Head(byte[] data, AudioTrack track) {
+    }
+
+    /**
+     * Decode the next track without taking it off the queue, null when the queue is empty or the head does not decode
+     */
+    @Nullable
+    public Head peekFirst() {
+        byte[] data;
+        synchronized (this) {
+            if (entries.isEmpty()) return null;
+            data = entries.get(0);
+        }
+
+        try {
+            return new Head(data, codec.decode(data));
+        } catch (IOException e) {
+            log.error("Could not decode the next queued track", e);
+            return null;
+        }
+    }
+
+    /**
+     * Take the head off the queue only if it is still the exact entry returned by {@link #peekFirst()}
+     */
+    public synchronized boolean removeFirstIf(byte[] data) {
+        if (entries.isEmpty() || entries.get(0) != data) return false;
+        entries.removeFirst();
+        return true;
+    }
+
+    /**
+     * Info of up to count queued tracks starting at index from, for display
+     */
+    public List<AudioTrackInfo> view(int from, int count) {
+        List<byte[]> range;
+        synchronized (this) {
+            range = entries.range(from, count);
+        }
+
+        // decoded outside the lock, the player thread may need to poll meanwhile
+        List<AudioTrackInfo> infos = new ArrayList<>(range.size());
+        for (byte[] data : range) {
+            infos.add(decodeInfo(data));
+        }
+        return infos;
+    }
+
+    @Nullable
+    private AudioTrackInfo decodeInfo(byte[] data) {
+        try {
+            return codec.decode(data).getInfo();
+        } catch (IOException e) {
+            log.error("Could not decode a queued track for display", e);
+            return null;
+        }
+    }
+
+    /**
+     * Remove the track at index, returning its info
+     */
+    @Nullable
+    public AudioTrackInfo remove(int index) {
+        byte[] data;
+        synchronized (this) {
+            data = entries.remove(index);
+        }
+        return decodeInfo(data);
+    }
+
+    /**
+     * Remove the tracks in [from, to), returning how many were removed
+     */
+    public synchronized int removeRange(int from, int to) {
+        return entries.removeRange(from, to);
+    }
+
+    public synchronized void move(int from, int to) {
+        entries.move(from, to);
+    }
+
+    /**
+     * Drop repeats of tracks that are already queued earlier, returning how many were removed
+     */
+    public synchronized int dedupe() {
+        return entries.dedupe();
+    }
+
+    public synchronized void shuffle() {
+        entries.shuffle(ThreadLocalRandom.current());
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Encoded size of everything queued
+     */
+    public synchronized long getBytes() {
+        return entries.getBytes();
+    }
+
+    /**
+     * Length of everything queued, streams do not count
+     */
+    public synchronized long getTotalDuration() {
+        return entries.getTotalDuration();
+    }
+
+    /**
+     * Length of everything queued ahead of index, streams do not count
+     */
+    public synchronized long getDurationBefore(int index) {
+        return entries.getDurationBefore(index);
+    }
+
+    public synchronized boolean hasStreams() {
+        return entries.getStreamCount() > 0;
+    }
+}
@@ -0,0 +1,295 @@
+package ca.edtoaster.audio;
+
+import ca.edtoaster.metrics.BotMetrics;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import io.micrometer.core.instrument.Counter;
+import lombok.extern.log4j.Log4j2;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.annotation.Nullable;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Remembers what a search or link resolved to, as lavaplayer encoded tracks. Entries live in a byte bounded
+ * LRU in memory and in one file per query on disk, so repeat plays skip the remote lookup even after a restart.
+ */
+@Log4j2
+public class TrackResolveCache {
+    // TRC1 files keyed links by their lower cased form
+    private static final int FILE_MAGIC = 0x54524332; // TRC2
+    private static final String FILE_SUFFIX = ".tracks";
+
+    private final TrackCodec codec;
+    @Nullable
+    private final Path directory;
+    private final long maxBytes;
+    private final Duration ttl;
+
+    private final Counter memoryHits = BotMetrics.REGISTRY.counter("toastbot.music.resolve.cache", "result", "memory_hit");
+    private final Counter diskHits = BotMetrics.REGISTRY.counter("toastbot.music.resolve.cache", "result", "disk_hit");
+    private final Counter misses = BotMetrics.REGISTRY.counter("toastbot.music.resolve.cache", "result", "miss");
+
+    private record Entry(List<byte[]> tracks, long expiresAt, long bytes) {
+    }
+
+    // guarded by itself, in access order so the eldest entry is the least recently used
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long totalBytes; // guarded by entries
+
+    /**
+     * @param directory where entries are persisted, or null to only cache in memory
+     */
+    public TrackResolveCache(TrackCodec codec, @Nullable Path directory, long maxBytes, Duration ttl) {
+        this.codec = codec;
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.ttl = ttl;
+
+        BotMetrics.REGISTRY.gauge("toastbot.music.resolve.cache.bytes", this, TrackResolveCache::getBytes);
+
+        if (directory != null) {
+            Mono.fromRunnable(this::sweepDirectory).subscribeOn(Schedulers.boundedElastic()).subscribe();
+        }
+    }
+
+    /**
+     * Searches that only differ in case or spacing resolve to the same tracks. Links are kept as they are,
+     * video and playlist ids are case sensitive.
+     */
+    public static String normalize(String searchTerm) {
+        if (!searchTerm.startsWith(TrackScheduler.SEARCH_PREFIX)) return searchTerm;
+        return searchTerm.strip().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+    }
+
+    public long getBytes() {
+        synchronized (entries) {
+            return totalBytes;
+        }
+    }
+
+    /**
+     * Tracks previously stored for this key, or empty on a miss
+     */
+    public Mono<List<AudioTrack>> get(String key) {
+        return Mono.defer(() -> {
+            Entry entry = getFromMemory(key);
+            if (entry != null) {
+                memoryHits.increment();
+                return Mono.just(entry);
+            }
+
+            if (directory == null) {
+                misses.increment();
+                return Mono.empty();
+            }
+
+            return Mono.fromCallable(() -> readFromDisk(key))
+                    .subscribeOn(Schedulers.boundedElastic())
+                    .doOnNext(e -> {
+                        diskHits.increment();
+                        putInMemory(key, e);
+                    })
+                    .switchIfEmpty(Mono.fromRunnable(misses::increment));
+        }).flatMap(entry -> Mono.justOrEmpty(decode(key, entry)));
+    }
+
+    public void put(String key, List<AudioTrack> tracks) {
+        if (tracks.isEmpty()) return;
+
+        List<byte[]> encoded = new ArrayList<>(tracks.size());
+        long bytes = 0;
+        try {
+            for (AudioTrack track : tracks) {
+                byte[] data = codec.encode(track);
+                encoded.add(data);
+                bytes += data.length;
+            }
+        } catch (IOException e) {
+            // some sources cannot encode their tracks, those are simply never cached
+            log.warn(String.format("Could not encode tracks for %s", key), e);
+            return;
+        }
+
+        Entry entry = new Entry(encoded, System.currentTimeMillis() + ttl.toMillis(), bytes);
+        putInMemory(key, entry);
+
+        if (directory != null) {
+            Mono.fromRunnable(() -> writeToDisk(key, entry))
+                    .subscribeOn(Schedulers.boundedElastic())
+                    .subscribe();
+        }
+    }
+
+    @Nullable
+    private List<AudioTrack> decode(String key, Entry entry) {
+        List<AudioTrack> tracks = new ArrayList<>(entry.tracks().size());
+        try {
+            for (byte[] data : entry.tracks()) {
+                tracks.add(codec.decode(data));
+            }
+        } catch (IOException e) {
+            // written by an older lavaplayer or with a source that is no longer registered
+            log.warn(String.format("Dropping cached tracks for %s", key), e);
+            remove(key);
+            return null;
+        }
+        return tracks;
+    }
+
+    @Nullable
+    private Entry getFromMemory(String key) {
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry == null) return null;
+            if (entry.expiresAt() < System.currentTimeMillis()) {
+                entries.remove(key);
+                totalBytes -= entry.bytes();
+                return null;
+            }
+            return entry;
+        }
+    }
+
+    private void putInMemory(String key, Entry entry) {
+        // a single oversized playlist would just flush everything else out
+        if (entry.bytes() > maxBytes) return;
+
+        synchronized (entries) {
+            Entry previous = entries.put(key, entry);
+            if (previous != null) totalBytes -= previous.bytes();
+            totalBytes += entry.bytes();
+
+            Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+            while (totalBytes > maxBytes && eldest.hasNext()) {
+                totalBytes -= eldest.next().getValue().bytes();
+                eldest.remove();
+            }
+        }
+    }
+
+    private void remove(String key) {
+        synchronized (entries) {
+            Entry entry = entries.remove(key);
+            if (entry != null) totalBytes -= entry.bytes();
+        }
+        if (directory != null) {
+            try {
+                Files.deleteIfExists(fileFor(key));
+            } catch (IOException e) {
+                log.warn("Could not delete cached tracks for " + key, e);
+            }
+        }
+    }
+
+    private Path fileFor(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            return directory.resolve(HexFormat.of().formatHex(digest) + FILE_SUFFIX);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void writeToDisk(String key, Entry entry) {
+        Path file = fileFor(key);
+        try {
+            Files.createDirectories(directory);
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (OutputStream os = Files.newOutputStream(tmp); DataOutputStream out = new DataOutputStream(os)) {
+                out.writeInt(FILE_MAGIC);
+                out.writeUTF(key);
+                out.writeLong(entry.expiresAt());
+                out.writeInt(entry.tracks().size());
+                for (byte[] data : entry.tracks()) {
+                    out.writeInt(data.length);
+                    out.write(data);
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.error("Could not persist cached tracks for " + key, e);
+        }
+    }
+
+    @Nullable
+    private Entry readFromDisk(String key) throws IOException {
+        Path file = fileFor(key);
+        if (!Files.exists(file)) return null;
+
+        try (InputStream is = Files.newInputStream(file); DataInputStream in = new DataInputStream(is)) {
+            // a different key hashing to the same file, or a file from another format, is just a miss
+            if (in.readInt() != FILE_MAGIC || !key.equals(in.readUTF())) return null;
+
+            long expiresAt = in.readLong();
+            if (expiresAt < System.currentTimeMillis()) {
+                Files.deleteIfExists(file);
+                return null;
+            }
+
+            int count = in.readInt();
+            List<byte[]> tracks = new ArrayList<>(count);
+            long bytes = 0;
+            for (int i = 0; i < count; i++) {
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                tracks.add(data);
+                bytes += data.length;
+            }
+            return new Entry(tracks, expiresAt, bytes);
+        }
+    }
+
+    /**
+     * Drop expired and unreadable files, so the directory is bounded by what was played within one ttl
+     */
+    private void sweepDirectory() {
+        if (!Files.isDirectory(directory)) return;
+
+        long now = System.currentTimeMillis();
+        int removed = 0;
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (!file.getFileName().toString().endsWith(FILE_SUFFIX)) continue;
+
+                boolean expired;
+                try (InputStream is = Files.newInputStream(file); DataInputStream in = new DataInputStream(is)) {
+                    if (in.readInt() != FILE_MAGIC) {
+                        expired = true;
+                    } else {
+                        in.readUTF();
+                        expired = in.readLong() < now;
+                    }
+                } catch (IOException e) {
+                    expired = true;
+                }
+                if (expired) {
+                    Files.deleteIfExists(file);
+                    removed++;
+                }
+            }
+        } catch (IOException e) {
+            log.error("Could not sweep track cache in " + directory, e);
+        }
+        log.info(String.format("Removed %d expired entries from the track cache", removed));
+    }
+}
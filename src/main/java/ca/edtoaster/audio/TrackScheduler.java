@@ -1,7 +1,6 @@
 package ca.edtoaster.audio;
 
-import ca.edtoaster.impl.handlers.MusicHandler;
-import com.codepoetics.protonpack.StreamUtils;
+import ca.edtoaster.metrics.BotMetrics;
 import com.sedmelluq.discord.lavaplayer.player.AudioLoadResultHandler;
 import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
 import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager;
@@ -13,42 +12,129 @@ import com.sedmelluq.discord.lavaplayer.track.AudioTrackEndReason;
 import com.sedmelluq.discord.lavaplayer.track.AudioTrackInfo;
 import lombok.Getter;
 import lombok.extern.log4j.Log4j2;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.util.annotation.Nullable;
 
+import java.io.IOException;
 import java.net.URL;
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 @Log4j2
 public class TrackScheduler extends AudioEventAdapter implements MusicPlayer {
 
-    private static final String SEARCH_PREFIX = "ytsearch:";
+    static final String SEARCH_PREFIX = "ytsearch:";
 
-    private final Deque<AudioTrack> upNext;
+    private final TrackQueue upNext;
+    private final TrackCodec codec;
     private final AudioPlayerManager manager;
-    private final AudioPlayer player;
+    private final TrackResolveCache trackCache;
+    private final OpusFrameCache frameCache;
+    // the player being heard, and a second one that buffers the next track ahead of time
+    private volatile AudioPlayer player;
+    private volatile AudioPlayer standby;
 
     @Getter
     private final LavaPlayerAudioProvider provider;
 
-    private final MusicHandler handler;
+    // how long before the end of a track the next one starts loading, zero disables preloading
+    private final Duration preloadLead;
+    private final Disposable.Swap pendingPreload = Disposables.swap();
 
-    public TrackScheduler(AudioPlayerManager manager, MusicHandler handler) {
-        this.upNext = new ArrayDeque<>();
+    /**
+     * Head of the queue, started paused on the standby player. data is the exact queue entry that was
+     * preloaded, so a hand off only happens while that entry is still at the head.
+     */
+    private record Preload(AudioPlayer player, AudioTrack track, byte[] data) {
+    }
+
+    private final AtomicReference<Preload> preloaded = new AtomicReference<>();
+
+    // the playing track encoded once, snapshots are taken far more often than tracks change
+    private record EncodedTrack(AudioTrack track, byte[] data) {
+    }
+
+    private volatile EncodedTrack encodedCurrent;
+
+    // bumped on every change to the queue or the player, so renders can be cached per version
+    private final AtomicLong version = new AtomicLong();
+    private final Runnable onChange;
+
+    /**
+     * @param onChange called after every change to the queue or the player, on whichever thread made it
+     */
+    public TrackScheduler(AudioPlayerManager manager,
+                          TrackCodec codec,
+                          TrackResolveCache trackCache,
+                          OpusFrameCache frameCache,
+                          Duration preloadLead,
+                          boolean directBuffers,
+                          Runnable onChange) {
+        this.upNext = new TrackQueue(codec);
+        this.codec = codec;
         this.manager = manager;
+        this.trackCache = trackCache;
+        this.frameCache = frameCache;
+        this.preloadLead = preloadLead;
         this.player = manager.createPlayer();
+        this.standby = manager.createPlayer();
         player.setVolume(40);
+        standby.setVolume(40);
         this.player.addListener(this);
-        this.provider = new LavaPlayerAudioProvider(player);
-        this.handler = handler;
+        this.standby.addListener(this);
+        this.provider = new LavaPlayerAudioProvider(player, directBuffers, frameCache);
+        this.onChange = onChange;
+    }
+
+    private void changed() {
+        version.incrementAndGet();
+        onChange.run();
+    }
+
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Position in the playing track, or 0 when nothing is playing
+     */
+    public long getPosition() {
+        AudioTrack currentTrack = player.getPlayingTrack();
+        return currentTrack == null ? 0 : currentTrack.getPosition();
     }
 
     // public methods
 
     public void setVolume(int vol) {
         player.setVolume(vol);
+        standby.setVolume(vol);
+
+        // cached frames have the old volume baked in, so the track goes back to its source from where it is
+        AudioTrack current = player.getPlayingTrack();
+        if (current instanceof CachedOpusTrack cached && cached.getVolume() != vol) {
+            AudioTrack original = cached.getOriginal().makeClone();
+            original.setPosition(cached.getPosition());
+            player.startTrack(playable(original), false);
+        }
+        dropPreload();
+        schedulePreload(player.getPlayingTrack());
+        changed();
+    }
+
+    /**
+     * The track as it should be played, from the frame cache when it has the track at the current volume
+     */
+    @Nullable
+    private AudioTrack playable(@Nullable AudioTrack track) {
+        return track == null ? null : frameCache.wrap(track, player.getVolume());
     }
 
     public int getVolume() {
@@ -78,10 +164,33 @@ public class TrackScheduler extends AudioEventAdapter implements MusicPlayer {
     public void resetPlayer() {
         this.clearQueue();
         player.stopTrack();
+        provider.stopRecording();
+    }
+
+    /**
+     * Stop playback and release the players, this scheduler cannot be used afterwards
+     */
+    public void destroy() {
+        pendingPreload.dispose();
+        resetPlayer();
+        player.destroy();
+        standby.destroy();
     }
 
     public void clearQueue() {
         this.upNext.clear();
+        dropPreload();
+        changed();
+    }
+
+    /**
+     * Play the track now if nothing is playing, otherwise add it to the end of the queue
+     */
+    public void enqueue(AudioTrack track) {
+        // loaded tracks are fresh instances, so they can be played as is
+        if (player.getPlayingTrack() != null || !player.startTrack(playable(track), true)) {
+            if (upNext.offer(track)) changed();
+        }
     }
 
     public Flux<AudioTrackInfo> queueTracks(String queryString) {
@@ -94,38 +203,37 @@ public class TrackScheduler extends AudioEventAdapter implements MusicPlayer {
         }
 
         log.info("Try queue");
-        return Flux.create(sink -> {
+        String cacheKey = TrackResolveCache.normalize(searchTerm);
+        return BotMetrics.time("toastbot.music.load", trackCache.get(cacheKey)
+                .switchIfEmpty(Mono.defer(() -> loadTracks(searchTerm, queryString)
+                        .doOnNext(tracks -> trackCache.put(cacheKey, tracks))))
+                .flatMapIterable(tracks -> tracks)
+                .doOnNext(this::enqueue)
+                .map(AudioTrack::getInfo), "source", isURL(queryString) ? "url" : "search");
+    }
+
+    /**
+     * Resolve a search or link remotely. Searches only keep their first result.
+     */
+    private Mono<List<AudioTrack>> loadTracks(String searchTerm, String queryString) {
+        return Mono.create(sink -> {
             this.manager.loadItem(searchTerm, new AudioLoadResultHandler() {
                 @Override
                 public void trackLoaded(AudioTrack track) {
                     log.info("Track loaded " + track.getIdentifier());
-                    if (!player.startTrack(track.makeClone(), true)) {
-                        upNext.offer(track);
-                    }
-                    sink.next(track.getInfo());
-                    sink.complete();
+                    sink.success(List.of(track));
                 }
 
                 @Override
                 public void playlistLoaded(AudioPlaylist playlist) {
                     log.info("Loaded playlist " + playlist.getName());
 
+                    List<AudioTrack> tracks = playlist.getTracks();
                     if (playlist.isSearchResult()) {
                         log.info("Search result");
-                        List<AudioTrack> tracks = playlist.getTracks();
-                        if (tracks.size() > 0) {
-                            trackLoaded(tracks.get(0));
-                        }
+                        sink.success(tracks.isEmpty() ? List.of() : List.of(tracks.get(0)));
                     } else {
-                        // add all tracks to queue
-                        for (AudioTrack track : playlist.getTracks()) {
-                            // todo: fix hackiness
-                            if (!player.startTrack(track.makeClone(), true)) {
-                                upNext.offer(track);
-                            }
-                            sink.next(track.getInfo());
-                        }
-                        sink.complete();
+                        sink.success(tracks);
                     }
                 }
 
@@ -150,18 +258,148 @@ public class TrackScheduler extends AudioEventAdapter implements MusicPlayer {
 //            this.upNext.offerFirst(currentTrack);
 //        }
 
-        player.startTrack(currentTrack, false);
+        // cached tracks clone into cached tracks, so a restart never goes back to the source
+        player.startTrack(playable(currentTrack), false);
         return Mono.justOrEmpty(currentTrack);
     }
 
     public Mono<AudioTrack> skipTrack() {
         log.info("Track skipping");
         AudioTrack currentTrack = player.getPlayingTrack();
-        AudioTrack track = this.upNext.poll();
-        player.startTrack(track == null ? null : track.makeClone(), false);
+        advance(false);
         return Mono.justOrEmpty(currentTrack);
     }
 
+    /**
+     * Move on to the head of the queue. If it was preloaded, the standby player takes over and is heard on the
+     * very next frame, otherwise the track is started from scratch on the current player.
+     */
+    private void advance(boolean trackEnded) {
+        pendingPreload.update(null);
+        Preload preload = preloaded.getAndSet(null);
+
+        // the standby may have dropped its track (cleaned up while paused for long), the head then stays queued
+        if (preload != null && preload.player().getPlayingTrack() != null && upNext.removeFirstIf(preload.data())) {
+            AudioPlayer previous = player;
+            AudioPlayer next = preload.player();
+
+            next.setPaused(previous.isPaused());
+            player = next;
+            standby = previous;
+            provider.setPlayer(next);
+            // events from the previous player are ignored from here on, so stopping it does not advance again
+            previous.stopTrack();
+
+            if (trackEnded) provider.markTransition("preloaded");
+            schedulePreload(next.getPlayingTrack());
+        } else {
+            if (preload != null) preload.player().stopTrack();
+
+            AudioTrack track = this.upNext.poll();
+            player.startTrack(playable(track), false);
+            if (trackEnded && track != null) provider.markTransition("cold");
+        }
+        changed();
+    }
+
+    private void dropPreload() {
+        pendingPreload.update(null);
+        Preload preload = preloaded.getAndSet(null);
+        if (preload != null) preload.player().stopTrack();
+    }
+
+    /**
+     * Start loading the next track once the given one is within the lead time of its end
+     */
+    private void schedulePreload(@Nullable AudioTrack track) {
+        if (track == null || track.getInfo().isStream || preloadLead.isZero()) return;
+
+        long delay = Math.max(0, track.getDuration() - track.getPosition() - preloadLead.toMillis());
+        pendingPreload.update(Mono.delay(Duration.ofMillis(delay))
+                .subscribe(t -> preload(track)));
+    }
+
+    private void preload(AudioTrack track) {
+        // the track moved on in the meantime, the next track start schedules its own preload
+        if (player.getPlayingTrack() != track || preloaded.get() != null) return;
+
+        TrackQueue.Head head = upNext.peekFirst();
+        if (head == null) return;
+
+        AudioPlayer next = standby;
+        next.setPaused(true);
+        AudioTrack track = playable(head.track());
+        if (!next.startTrack(track, false)) return;
+        // the manager stops tracks on players that are never polled, this counts as a poll while buffering
+        next.provide();
+
+        if (!preloaded.compareAndSet(null, new Preload(next, track, head.data()))) {
+            next.stopTrack();
+            return;
+        }
+        log.info(String.format("Preloading %s", head.track().getIdentifier()));
+    }
+
+    /**
+     * Current state of the player and the queue, for saving. Queue entries are shared with the queue, not copied.
+     */
+    public PlayerSnapshot snapshot(long voiceChannelId) {
+        AudioTrack current = player.getPlayingTrack();
+        return new PlayerSnapshot(voiceChannelId,
+                player.getVolume(),
+                player.isPaused(),
+                encodeCurrent(current),
+                current == null ? 0 : current.getPosition(),
+                upNext.entries());
+    }
+
+    @Nullable
+    private byte[] encodeCurrent(@Nullable AudioTrack current) {
+        if (current == null) return null;
+
+        EncodedTrack cached = encodedCurrent;
+        if (cached != null && cached.track() == current) return cached.data();
+
+        try {
+            // cached tracks cannot be encoded, they are saved as the track they were made from
+            byte[] data = codec.encode(current instanceof CachedOpusTrack cached ? cached.getOriginal() : current);
+            encodedCurrent = new EncodedTrack(current, data);
+            return data;
+        } catch (IOException e) {
+            log.error(String.format("Could not save track %s", current.getIdentifier()), e);
+            return null;
+        }
+    }
+
+    /**
+     * Nothing playing and nothing queued
+     */
+    public boolean isIdle() {
+        return player.getPlayingTrack() == null && upNext.size() == 0;
+    }
+
+    /**
+     * Pick up from a saved state, resuming the saved track where it was
+     */
+    public void restore(PlayerSnapshot snapshot) {
+        player.setVolume(snapshot.volume());
+        standby.setVolume(snapshot.volume());
+        player.setPaused(snapshot.paused());
+        upNext.addAll(snapshot.queue());
+
+        if (snapshot.current() != null) {
+            try {
+                AudioTrack track = codec.decode(snapshot.current());
+                if (track.isSeekable()) track.setPosition(snapshot.position());
+                player.startTrack(playable(track), false);
+            } catch (IOException e) {
+                log.error("Could not restore the saved track, moving on to the queue", e);
+                player.startTrack(playable(upNext.poll()), false);
+            }
+        }
+        changed();
+    }
+
     private String format(long millis) {
         final long hr = TimeUnit.MILLISECONDS.toHours(millis);
         final long min = TimeUnit.MILLISECONDS.toMinutes(millis) % 60;
@@ -185,33 +423,148 @@ public class TrackScheduler extends AudioEventAdapter implements MusicPlayer {
         return builder.toString();
     }
 
+    private static String title(AudioTrackInfo info) {
+        return info == null ? "Unknown track" : info.title;
+    }
+
     public String getUpNext() {
         if (isQueueEmpty()) {
             return "There are no songs left in the queue";
         } else {
             int numUpNext = upNext.size();
             int andMore = numUpNext - 20;
-            String content = StreamUtils.zipWithIndex(upNext.stream())
-                        .limit(20)
-                        .map(i -> String.format(":small_blue_diamond: %s",
-                                i.getValue().getInfo().title))
+            List<AudioTrackInfo> head = upNext.view(0, 20);
+            String content = IntStream.range(0, head.size())
+                        .mapToObj(i -> String.format(":small_blue_diamond: `%d.` %s", i + 1, title(head.get(i))))
                         .collect(Collectors.joining("\n"));
             if (andMore > 0) {
                 content = content + "\nand " + andMore + " more...";
             }
-            return content;
+            return content + String.format("\nTotal: %s", formatQueueDuration());
+        }
+    }
+
+    private String formatQueueDuration() {
+        String total = format(upNext.getTotalDuration());
+        return upNext.hasStreams() ? total + " and some streams" : total;
+    }
+
+    /**
+     * Time left in the playing track, or 0 when nothing is playing or it is a stream
+     */
+    private long getRemaining() {
+        AudioTrack currentTrack = player.getPlayingTrack();
+        if (currentTrack == null || currentTrack.getInfo().isStream) return 0;
+        return Math.max(0, currentTrack.getDuration() - currentTrack.getPosition());
+    }
+
+    /**
+     * Page of the queue with positions and when each track should start. Pages start at 0.
+     */
+    public String getQueuePage(int page, int pageSize) {
+        int size = upNext.size();
+        if (size == 0) {
+            return "There are no songs left in the queue";
+        }
+
+        int pages = (size + pageSize - 1) / pageSize;
+        int from = Math.min(page, pages - 1) * pageSize;
+        List<AudioTrackInfo> infos = upNext.view(from, pageSize);
+
+        // only the first entry needs a prefix sum, the rest follow from the entries before it
+        long eta = getRemaining() + upNext.getDurationBefore(from);
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < infos.size(); i++) {
+            AudioTrackInfo info = infos.get(i);
+            builder.append(String.format("`%d.` %s [%s] (in %s)%n",
+                    from + i + 1,
+                    title(info),
+                    info == null || info.isStream ? "stream" : format(info.length),
+                    format(eta)));
+            if (info != null && !info.isStream) {
+                eta += info.length;
+            }
         }
+        builder.append(String.format("Page %d/%d, %d tracks, %s", from / pageSize + 1, pages, size, formatQueueDuration()));
+        return builder.toString();
+    }
+
+    public int getQueueSize() {
+        return upNext.size();
+    }
+
+    @Nullable
+    public AudioTrackInfo removeTrack(int index) {
+        AudioTrackInfo removed = upNext.remove(index);
+        changed();
+        return removed;
+    }
+
+    public int removeTracks(int from, int to) {
+        int removed = upNext.removeRange(from, to);
+        changed();
+        return removed;
+    }
+
+    public void moveTrack(int from, int to) {
+        upNext.move(from, to);
+        changed();
+    }
+
+    public int dedupeQueue() {
+        int removed = upNext.dedupe();
+        changed();
+        return removed;
+    }
+
+    public void shuffleQueue() {
+        upNext.shuffle();
+        changed();
     }
 
 
     // callbacks and stuff
 
+    // events from the standby player are not audible, only the active player drives the scheduler
+
+    @Override
+    public void onPlayerPause(AudioPlayer player) {
+        if (player != this.player) return;
+        changed();
+    }
+
+    @Override
+    public void onPlayerResume(AudioPlayer player) {
+        if (player != this.player) return;
+        changed();
+    }
+
+    @Override
+    public void onTrackStart(AudioPlayer player, AudioTrack track) {
+        if (player != this.player) return;
+        schedulePreload(track);
+        changed();
+    }
+
     @Override
     public void onTrackEnd(AudioPlayer player, AudioTrack track, AudioTrackEndReason endReason) {
+        if (player != this.player) {
+            // a preload that ended for any reason (failed to load, cleaned up, stopped) is forgotten, the hand
+            // off then starts the head from scratch
+            Preload preload = preloaded.get();
+            if (preload != null && preload.player() == player && preload.track() == track) {
+                preloaded.compareAndSet(preload, null);
+            }
+            return;
+        }
+
         log.info("OnTrackEnd called");
         if (endReason.mayStartNext) {
             log.info("may start next called");
-            skipTrack().then(this.handler.refreshQueueMessages()).subscribe();
+            advance(true);
+        } else {
+            pendingPreload.update(null);
+            changed();
         }
 
         // endReason == FINISHED: A track finished or died by an exception (mayStartNext = true).
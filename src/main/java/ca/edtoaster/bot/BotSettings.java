@@ -0,0 +1,11 @@
+package ca.edtoaster.bot;
+
+import ca.edtoaster.partition.LaneSettings;
+
+import java.nio.file.Path;
+
+/**
+ * Process wide knobs for the bot, resolved from the environment by the runner
+ */
+public record BotSettings(Path dataDirectory, boolean globalCommands, LaneSettings laneSettings) {
+}
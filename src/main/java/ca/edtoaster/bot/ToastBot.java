@@ -1,12 +1,18 @@
 package ca.edtoaster.bot;
 
 import ca.edtoaster.commands.InteractionHandlerSpec;
+import ca.edtoaster.metrics.BotMetrics;
+import ca.edtoaster.partition.CommandRegistry;
+import ca.edtoaster.partition.CommandSynchronizer;
+import ca.edtoaster.partition.FingerprintStore;
 import ca.edtoaster.partition.Partition;
 import ca.edtoaster.util.Utils;
 import discord4j.common.util.Snowflake;
 import discord4j.core.DiscordClient;
 import discord4j.core.GatewayDiscordClient;
 import discord4j.core.event.ReactiveEventAdapter;
+import discord4j.core.event.domain.guild.GuildCreateEvent;
+import discord4j.core.event.domain.guild.GuildDeleteEvent;
 import discord4j.core.event.domain.interaction.ApplicationCommandInteractionEvent;
 import discord4j.core.event.domain.interaction.ButtonInteractionEvent;
 import discord4j.core.event.domain.lifecycle.ReadyEvent;
@@ -17,6 +23,7 @@ import discord4j.core.object.entity.User;
 import discord4j.core.object.entity.channel.Channel;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.log4j.Log4j2;
+import org.jctools.maps.NonBlockingHashMapLong;
 import org.reactivestreams.Publisher;
 import reactor.core.publisher.Mono;
 
@@ -53,12 +60,16 @@ public class ToastBot implements Runnable {
 
     private final String token;
     private final List<InteractionHandlerSpec> interactionHandlerSpecs;
+    private final BotSettings settings;
 
     private DiscordClient discordClient;
     private GatewayDiscordClient gatewayDiscordClient;
     private User botUser;
+    private CommandRegistry registry;
+    private CommandSynchronizer commandSynchronizer;
 
-    private Map<Snowflake, Partition> partitionMap;
+    // keyed by guild id, read concurrently by every event thread
+    private NonBlockingHashMapLong<Partition> partitionMap;
 
     @Override
     public void run() {
@@ -66,28 +77,74 @@ public class ToastBot implements Runnable {
         this.discordClient = DiscordClient.create(token);
         this.gatewayDiscordClient = discordClient.login().blockOptional().orElseThrow();
         this.botUser = gatewayDiscordClient.getSelf().blockOptional().orElseThrow();
-        this.partitionMap = new HashMap<>();
+        this.partitionMap = new NonBlockingHashMapLong<>();
+
+        // command metadata is identical for every guild, so it is only built once
+        this.registry = CommandRegistry.build(interactionHandlerSpecs);
+        this.commandSynchronizer = new CommandSynchronizer(discordClient, registry,
+                new FingerprintStore(settings.dataDirectory()), settings.globalCommands());
 
         log.info("Server Invite link: " + Utils.getServerInviteLink(botUser));
 
-        // refresh commands and
-        gatewayDiscordClient.getGuilds()
-                .doOnNext(g -> log.info(String.format("Refreshing guild %s", g.toString())))
-                .map(g -> new Partition(g.getId(), botUser, discordClient, interactionHandlerSpecs))
-                .doOnNext(p -> this.partitionMap.put(p.getNamespace(), p))
-                .flatMap(Partition::refreshGuild)
-                .blockLast();
+        commandSynchronizer.syncGlobal()
+                .doOnError(e -> log.error("Could not sync global commands", e))
+                .onErrorResume(e -> Mono.empty())
+                .subscribe();
 
+        // partitions are created as guilds become available, so events are handled right away
         gatewayDiscordClient.on(new ReactiveEventAdapter() {
             @Override
             public Publisher<?> onReady(ReadyEvent event) {
                 log.info("Client ready!");
+                commandSynchronizer.expectGuilds(event.getGuilds().size());
+                return Mono.empty();
+            }
+
+            @Override
+            public Publisher<?> onGuildCreate(GuildCreateEvent event) {
+                Snowflake guildID = event.getGuild().getId();
+                Partition existing = partitionMap.get(guildID.asLong());
+                if (Objects.nonNull(existing)) {
+                    log.info(String.format("Guild %s is available again", guildID.asString()));
+                    return existing.handleGuildReady(event.getGuild());
+                }
+
+                Partition partition = new Partition(guildID, botUser, discordClient, registry, settings.laneSettings());
+                if (partitionMap.putIfAbsent(guildID.asLong(), partition) != null) {
+                    partition.dispose();
+                    return Mono.empty();
+                }
+
+                log.info(String.format("Refreshing guild %s", guildID.asString()));
+                return Mono.when(partition.handleGuildReady(event.getGuild()),
+                        commandSynchronizer.syncGuild(partition)
+                                .onErrorResume(e -> {
+                                    log.error(String.format("Could not refresh guild %s", guildID.asString()), e);
+                                    return Mono.empty();
+                                }));
+            }
+
+            @Override
+            public Publisher<?> onGuildDelete(GuildDeleteEvent event) {
+                Snowflake guildID = event.getGuildId();
+                if (event.isUnavailable()) {
+                    // outage, the guild will come back with another create event
+                    log.info(String.format("Guild %s is unavailable", guildID.asString()));
+                    return Mono.empty();
+                }
+
+                Partition partition = partitionMap.remove(guildID.asLong());
+                if (Objects.nonNull(partition)) {
+                    log.info(String.format("Removed from guild %s", guildID.asString()));
+                    partition.dispose();
+                }
                 return Mono.empty();
             }
 
             @Override
             public Publisher<?> onButtonInteraction(ButtonInteractionEvent event) {
                 log.info("Got button interaction event!");
+                BotMetrics.countEvent("button");
 
                 // check guild id
                 Snowflake guildID = event.getInteraction().getGuildId().orElse(null);
@@ -97,7 +154,7 @@ public class ToastBot implements Runnable {
                     return event.reply("Commands to this bot must be sent from inside a server").withEphemeral(true);
                 }
 
-                Partition partition = partitionMap.getOrDefault(guildID, null);
+                Partition partition = partitionMap.get(guildID.asLong());
                 if (Objects.isNull(partition)) {
                     log.info("Partition " + guildID.asString() + " not found");
                     return event.reply("Something went wrong!").withEphemeral(true);
@@ -109,6 +166,7 @@ public class ToastBot implements Runnable {
             @Override
             public Publisher<?> onApplicationCommandInteraction(ApplicationCommandInteractionEvent event) {
                 log.info("Got event");
+                BotMetrics.countEvent("slash");
 
                 // check guild id
                 Snowflake guildID = event.getInteraction().getGuildId().orElse(null);
@@ -117,7 +175,7 @@ public class ToastBot implements Runnable {
                     return event.reply("Commands to this bot must be sent from inside a server").withEphemeral(true);
                 }
 
-                Partition partition = partitionMap.getOrDefault(guildID, null);
+                Partition partition = partitionMap.get(guildID.asLong());
                 if (Objects.isNull(partition)) {
                     log.info("Partition " + guildID.asString() + " not found");
                     return event.reply("Something went wrong!").withEphemeral(true);
@@ -129,6 +187,7 @@ public class ToastBot implements Runnable {
             @Override
             public Publisher<?> onMessageCreate(MessageCreateEvent event) {
                 log.info("Got message");
+                BotMetrics.countEvent("message");
 
                 // check guild id
                 Snowflake guildID = event.getGuildId().orElse(null);
@@ -137,11 +196,11 @@ public class ToastBot implements Runnable {
                     return Mono.empty();
                 }
 
-                Partition partition = partitionMap.getOrDefault(guildID, null);
+                Partition partition = partitionMap.get(guildID.asLong());
                 if (Objects.isNull(partition)) {
+                    // the guild create event has not been processed yet
                     log.info("Partition " + guildID.asString() + " not found");
-                    return event.getMessage().getChannel().flatMap(c ->
-                            c.createMessage("Whoa! Something went truly wrong. Reach out to my author to fix me!"));
+                    return Mono.empty();
                 }
 
                 return partition.handleMessageCreate(event);
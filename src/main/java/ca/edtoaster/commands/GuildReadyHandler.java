@@ -0,0 +1,11 @@
+package ca.edtoaster.commands;
+
+import discord4j.core.object.entity.Guild;
+import reactor.core.publisher.Mono;
+
+public interface GuildReadyHandler {
+    /**
+     * Called whenever the guild becomes available, on startup and again after an outage
+     */
+    Mono<Void> onGuildReady(Guild guild);
+}
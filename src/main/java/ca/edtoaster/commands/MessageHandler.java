@@ -1,8 +1,17 @@
 package ca.edtoaster.commands;
 
 import ca.edtoaster.commands.data.MessageCreateData;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 public interface MessageHandler {
     Mono<Void> handleMessageCreate(MessageCreateData data);
+
+    /**
+     * The handler's current subscription, followed by a new one whenever it changes.
+     * Only messages matching the latest subscription are passed to handleMessageCreate.
+     */
+    default Flux<MessageSubscription> getSubscriptions() {
+        return Flux.just(MessageSubscription.ALL);
+    }
 }
@@ -0,0 +1,52 @@
+package ca.edtoaster.commands;
+
+import reactor.util.annotation.Nullable;
+
+import java.util.Set;
+
+/**
+ * Describes which messages a MessageHandler wants to see. The partition indexes these so that messages
+ * outside every subscription are dropped before any data object or network call is made.
+ *
+ * A message matches when it was sent in one of the channels, or in a thread under one of the thread parents
+ * (or anywhere, for anyChannel), and it passes the author and content filters.
+ */
+public record MessageSubscription(boolean anyChannel,
+                                  Set<Long> channelIds,
+                                  Set<Long> threadParentIds,
+                                  boolean ignoreBots,
+                                  boolean ignoreSelf,
+                                  @Nullable String contentPrefix) {
+
+    public static final MessageSubscription ALL = new MessageSubscription(true, Set.of(), Set.of(), false, false, null);
+    public static final MessageSubscription NONE = new MessageSubscription(false, Set.of(), Set.of(), false, false, null);
+
+    public static MessageSubscription inChannels(Set<Long> channelIds) {
+        return new MessageSubscription(false, Set.copyOf(channelIds), Set.of(), false, false, null);
+    }
+
+    public static MessageSubscription inThreadsOf(Set<Long> threadParentIds) {
+        return new MessageSubscription(false, Set.of(), Set.copyOf(threadParentIds), false, false, null);
+    }
+
+    public MessageSubscription withoutBots() {
+        return new MessageSubscription(anyChannel, channelIds, threadParentIds, true, ignoreSelf, contentPrefix);
+    }
+
+    public MessageSubscription withoutSelf() {
+        return new MessageSubscription(anyChannel, channelIds, threadParentIds, ignoreBots, true, contentPrefix);
+    }
+
+    public MessageSubscription withContentPrefix(String contentPrefix) {
+        return new MessageSubscription(anyChannel, channelIds, threadParentIds, ignoreBots, ignoreSelf, contentPrefix);
+    }
+
+    /**
+     * Checks the author and content filters, the channel is checked by the partition's index
+     */
+    public boolean accepts(boolean authorIsBot, boolean authorIsSelf, String content) {
+        if (ignoreBots && authorIsBot) return false;
+        if (ignoreSelf && authorIsSelf) return false;
+        return contentPrefix == null || content.startsWith(contentPrefix);
+    }
+}
@@ -0,0 +1,164 @@
+package ca.edtoaster.impl;
+
+import ca.edtoaster.audio.OpusFrameCache;
+import ca.edtoaster.audio.PlaybackStats;
+import ca.edtoaster.metrics.BotMetrics;
+import com.sedmelluq.discord.lavaplayer.player.AudioConfiguration;
+import com.sedmelluq.discord.lavaplayer.player.AudioConfiguration.ResamplingQuality;
+import io.micrometer.core.instrument.Counter;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.publisher.Flux;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Trades audio fidelity for CPU when playback starts missing frames. Every few seconds the share of missed
+ * frames across all players and the process CPU load are sampled; under pressure the shared lavaplayer
+ * configuration steps down one level, and it only steps back up after several calm samples in a row.
+ * Encoders and resamplers are built when a track starts or seeks, so a change reaches each player with its
+ * next track.
+ */
+@Log4j2
+public class AudioLoadGovernor implements Disposable {
+    private record Level(int opusQuality, ResamplingQuality resampling) {
+    }
+
+    // from best to cheapest
+    private static final List<Level> LEVELS = List.of(
+            new Level(10, ResamplingQuality.HIGH),
+            new Level(10, ResamplingQuality.MEDIUM),
+            new Level(8, ResamplingQuality.LOW),
+            new Level(5, ResamplingQuality.LOW),
+            new Level(2, ResamplingQuality.LOW));
+
+    private static final Duration SAMPLE_INTERVAL = Duration.ofSeconds(5);
+    private static final double STEP_DOWN_MISS_RATIO = 0.01;
+    private static final double STEP_DOWN_CPU = 0.85;
+    private static final double STEP_UP_MISS_RATIO = 0.001;
+    private static final double STEP_UP_CPU = 0.6;
+    // calm samples needed before stepping back up, so the level does not flap around a threshold
+    private static final int STEP_UP_SAMPLES = 6;
+
+    private final AudioConfiguration configuration;
+    private final OpusFrameCache frameCache;
+    private final Set<PlaybackStats> watched = ConcurrentHashMap.newKeySet();
+    private final Disposable sampling;
+
+    @Getter
+    private volatile int level;
+    @Getter
+    private volatile double missRatio;
+    @Getter
+    private volatile double cpuLoad;
+
+    // only touched by the sampling task
+    private long lastProvided;
+    private long lastMissed;
+    private int calmSamples;
+
+    private final Counter stepsDown = BotMetrics.REGISTRY.counter("toastbot.music.quality.changes", "direction", "down");
+    private final Counter stepsUp = BotMetrics.REGISTRY.counter("toastbot.music.quality.changes", "direction", "up");
+
+    /**
+     * @param enabled false to leave lavaplayer's configuration alone
+     */
+    public AudioLoadGovernor(AudioConfiguration configuration, OpusFrameCache frameCache, boolean enabled) {
+        this.configuration = configuration;
+        this.frameCache = frameCache;
+        if (!enabled) {
+            this.sampling = Disposables.disposed();
+            return;
+        }
+        apply(0);
+
+        BotMetrics.registerGauges(this, "toastbot.music.quality", Map.<String, ToDoubleFunction<AudioLoadGovernor>>of(
+                "level", AudioLoadGovernor::getLevel,
+                "miss.ratio", AudioLoadGovernor::getMissRatio,
+                "cpu", AudioLoadGovernor::getCpuLoad));
+
+        this.sampling = Flux.interval(SAMPLE_INTERVAL, SAMPLE_INTERVAL).subscribe(t -> sample());
+    }
+
+    public void watch(PlaybackStats stats) {
+        watched.add(stats);
+    }
+
+    public void unwatch(PlaybackStats stats) {
+        watched.remove(stats);
+    }
+
+    @Override
+    public void dispose() {
+        sampling.dispose();
+    }
+
+    @Override
+    public boolean isDisposed() {
+        return sampling.isDisposed();
+    }
+
+    private void sample() {
+        long provided = 0;
+        long missed = 0;
+        for (PlaybackStats stats : watched) {
+            provided += stats.getProvided();
+            missed += stats.getMissed();
+        }
+
+        // players that went away take their counts with them, which only ever makes a sample look calmer
+        long dueDelta = Math.max(0, provided - lastProvided) + Math.max(0, missed - lastMissed);
+        long missedDelta = Math.max(0, missed - lastMissed);
+        lastProvided = provided;
+        lastMissed = missed;
+
+        missRatio = dueDelta == 0 ? 0 : (double) missedDelta / dueDelta;
+        cpuLoad = processCpuLoad();
+
+        if (missRatio > STEP_DOWN_MISS_RATIO || cpuLoad > STEP_DOWN_CPU) {
+            calmSamples = 0;
+            if (level < LEVELS.size() - 1) {
+                apply(level + 1);
+                stepsDown.increment();
+            }
+        } else if (missRatio < STEP_UP_MISS_RATIO && cpuLoad < STEP_UP_CPU) {
+            if (++calmSamples >= STEP_UP_SAMPLES && level > 0) {
+                calmSamples = 0;
+                apply(level - 1);
+                stepsUp.increment();
+            }
+        } else {
+            calmSamples = 0;
+        }
+    }
+
+    private void apply(int next) {
+        Level settings = LEVELS.get(next);
+        configuration.setOpusEncodingQuality(settings.opusQuality());
+        configuration.setResamplingQuality(settings.resampling());
+        // recordings are served for good, so only full quality plays are worth keeping
+        frameCache.setRecording(next == 0);
+
+        if (next != level) {
+            log.info(String.format("Audio quality level %d -> %d (opus %d, resampling %s), %.2f%% frames missed, cpu %.0f%%",
+                    level, next, settings.opusQuality(), settings.resampling(), missRatio * 100, cpuLoad * 100));
+        }
+        level = next;
+    }
+
+    private static double processCpuLoad() {
+        if (ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.OperatingSystemMXBean os) {
+            double load = os.getProcessCpuLoad();
+            return load < 0 ? 0 : load;
+        }
+        return 0;
+    }
+}
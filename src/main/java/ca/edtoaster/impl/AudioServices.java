@@ -0,0 +1,112 @@
+package ca.edtoaster.impl;
+
+import ca.edtoaster.audio.OpusFrameCache;
+import ca.edtoaster.audio.PlayerStateStore;
+import ca.edtoaster.audio.TrackCodec;
+import ca.edtoaster.audio.TrackResolveCache;
+import ca.edtoaster.metrics.BotMetrics;
+import com.sedmelluq.discord.lavaplayer.source.AudioSourceManagers;
+import com.sedmelluq.discord.lavaplayer.track.playback.NonAllocatingAudioFrameBuffer;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+import reactor.util.annotation.Nullable;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Audio state shared by every guild. There is one player manager for the whole process, so source managers,
+ * their HTTP clients and lavaplayer's thread pools exist once. Guilds only own their AudioPlayer.
+ */
+@Log4j2
+public class AudioServices {
+    @Getter
+    private final ExposingAudioPlayerManager playerManager;
+    @Getter
+    private final TrackCodec trackCodec;
+    @Getter
+    private final TrackResolveCache trackCache;
+    @Getter
+    private final PlayerStateStore stateStore;
+    @Getter
+    private final OpusFrameCache frameCache;
+    @Getter
+    private final AudioLoadGovernor governor;
+    @Getter
+    private final int maxPlayers;
+    @Getter
+    private final Duration preloadLead;
+    @Getter
+    private final boolean directBuffers;
+
+    // lavaplayer runs one playback thread per playing track, so bounding players bounds those threads;
+    // null when unbounded
+    @Nullable
+    private final Semaphore players;
+    private final AtomicInteger activePlayers = new AtomicInteger();
+
+    private static final long TRACK_CACHE_BYTES = 32L * 1024 * 1024;
+    private static final Duration TRACK_CACHE_TTL = Duration.ofDays(3);
+    private static final String TRACK_CACHE_DIR = "track-cache";
+    private static final String STATE_FILE = "player-state.log";
+    private static final String FRAME_CACHE_DIR = "frame-cache";
+
+    /**
+     * @param maxPlayers how many guilds can be connected to voice at once, 0 for no limit. A guild plays up to two
+     *                   tracks while the next one is preloading, so this bounds playback threads at twice as many
+     * @param preloadLead how long before a track ends the next one starts loading, zero disables preloading
+     * @param directBuffers whether audio frames are handed to voice connections in direct buffers
+     * @param frameCacheBytes disk space for recorded frames of played tracks, 0 disables recording them
+     * @param adaptiveQuality whether quality is lowered for everyone when players start missing frames
+     * @param dataDirectory where resolved tracks and player state are persisted, or null to keep nothing on disk
+     */
+    public AudioServices(int loaderThreads, int maxPlayers, Duration preloadLead, boolean directBuffers,
+                         long frameCacheBytes, boolean adaptiveQuality, @Nullable Path dataDirectory) {
+        this.maxPlayers = maxPlayers;
+        this.preloadLead = preloadLead;
+        this.directBuffers = directBuffers;
+        this.players = maxPlayers > 0 ? new Semaphore(maxPlayers) : null;
+
+        this.playerManager = new ExposingAudioPlayerManager();
+        playerManager.getConfiguration().setFrameBufferFactory(NonAllocatingAudioFrameBuffer::new);
+        playerManager.setItemLoaderThreadPoolSize(loaderThreads);
+        AudioSourceManagers.registerRemoteSources(playerManager);
+
+        this.trackCodec = new TrackCodec(playerManager);
+        this.trackCache = new TrackResolveCache(trackCodec,
+                dataDirectory == null ? null : dataDirectory.resolve(TRACK_CACHE_DIR), TRACK_CACHE_BYTES, TRACK_CACHE_TTL);
+        this.frameCache = new OpusFrameCache(
+                dataDirectory == null ? null : dataDirectory.resolve(FRAME_CACHE_DIR), frameCacheBytes);
+        this.stateStore = new PlayerStateStore(dataDirectory == null ? null : dataDirectory.resolve(STATE_FILE));
+        this.governor = new AudioLoadGovernor(playerManager.getConfiguration(), frameCache, adaptiveQuality);
+
+        BotMetrics.registerGauges(this, "toastbot.music", Map.<String, ToDoubleFunction<AudioServices>>of(
+                "players.active", AudioServices::getActivePlayers,
+                "players.max", AudioServices::getMaxPlayers));
+
+        log.info(String.format("Audio services ready with %d loader threads and room for %s players",
+                loaderThreads, maxPlayers > 0 ? String.valueOf(maxPlayers) : "unlimited"));
+    }
+
+    /**
+     * Reserve room for one more guild to play audio, always granted when there is no limit
+     */
+    public boolean tryAcquirePlayer() {
+        if (players != null && !players.tryAcquire()) return false;
+        activePlayers.incrementAndGet();
+        return true;
+    }
+
+    public void releasePlayer() {
+        activePlayers.decrementAndGet();
+        if (players != null) players.release();
+    }
+
+    public int getActivePlayers() {
+        return activePlayers.get();
+    }
+}
@@ -1,26 +1,46 @@
 package ca.edtoaster.impl;
 
+import ca.edtoaster.bot.BotSettings;
 import ca.edtoaster.bot.ToastBot;
 import ca.edtoaster.impl.handlers.ChatHandler;
 import ca.edtoaster.impl.handlers.UtilityHandler;
 import ca.edtoaster.impl.handlers.MusicHandler;
+import ca.edtoaster.metrics.BotMetrics;
+import ca.edtoaster.metrics.MetricsServer;
+import ca.edtoaster.util.ChatGPT;
+import ca.edtoaster.util.ConversationIndex;
 import lombok.RequiredArgsConstructor;
 
+import java.time.Duration;
 import java.util.List;
 
 import static ca.edtoaster.impl.Environment.DISCORD_TOKEN;
 
 @RequiredArgsConstructor
 public class BotRunner implements Runnable {
+    private static final Duration LAG_PROBE_INTERVAL = Duration.ofMillis(500);
+
     private final Environment env;
 
     @Override
     public void run() {
         String token = env.getDiscordToken();
+        BotMetrics.startEventLoopLagProbe(LAG_PROBE_INTERVAL);
+        if (env.getMetricsPort() != 0) {
+            MetricsServer.start(env.getMetricsHost(), env.getMetricsPort());
+        }
+
+        BotSettings settings = new BotSettings(env.getDataDirectory(), env.isGlobalCommands(), env.getLaneSettings());
+        AudioServices audioServices = new AudioServices(env.getAudioLoaderThreads(), env.getAudioMaxPlayers(),
+                env.getAudioPreloadLead(), env.isAudioDirectBuffers(), env.getAudioFrameCacheBytes(), env.isAudioAdaptiveQuality(),
+                env.getDataDirectory());
+        // one pooled client for the whole process, so connections are reused across guilds and messages
+        ChatGPT chat = new ChatGPT(env.getChatGPTEndpoint());
+        ConversationIndex conversations = new ConversationIndex(env.getDataDirectory());
 
         new ToastBot(token, List.of(
                 UtilityHandler.getInteractionHandlerSpec(),
-                MusicHandler.getInteractionHandlerSpec(),
-                ChatHandler.getInteractionHandlerSpec())).run();
+                MusicHandler.getInteractionHandlerSpec(audioServices),
+                ChatHandler.getInteractionHandlerSpec(chat, conversations)), settings).run();
     }
 }
@@ -1,7 +1,12 @@
 package ca.edtoaster.impl;
 
+import ca.edtoaster.partition.LaneSettings;
+import ca.edtoaster.partition.OverflowPolicy;
+import ca.edtoaster.util.ChatGPT;
 import lombok.RequiredArgsConstructor;
 
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.Map;
 import java.util.Optional;
 
@@ -11,6 +16,27 @@ public class Environment {
 
     public static final String DISCORD_TOKEN = "DISCORD_TOKEN";
     public static final String USER_DIR = "user.dir";
+    public static final String DATA_DIR = "TOASTBOT_DATA_DIR";
+    public static final String COMMAND_SCOPE = "COMMAND_SCOPE";
+    public static final String LANE_CAPACITY = "LANE_CAPACITY";
+    public static final String LANE_OVERFLOW_POLICY = "LANE_OVERFLOW_POLICY";
+    public static final String METRICS_HOST = "METRICS_HOST";
+    public static final String METRICS_PORT = "METRICS_PORT";
+    public static final String AUDIO_LOADER_THREADS = "AUDIO_LOADER_THREADS";
+    public static final String AUDIO_MAX_PLAYERS = "AUDIO_MAX_PLAYERS";
+    public static final String AUDIO_PRELOAD_LEAD = "AUDIO_PRELOAD_LEAD";
+    public static final String AUDIO_DIRECT_BUFFERS = "AUDIO_DIRECT_BUFFERS";
+    public static final String AUDIO_FRAME_CACHE_MB = "AUDIO_FRAME_CACHE_MB";
+    public static final String AUDIO_ADAPTIVE_QUALITY = "AUDIO_ADAPTIVE_QUALITY";
+    public static final String CHATGPT_ENDPOINT = "CHATGPT_ENDPOINT";
+
+    private static final String DEFAULT_DATA_DIR = "data";
+    private static final String GLOBAL_COMMAND_SCOPE = "global";
+    private static final String DEFAULT_METRICS_HOST = "127.0.0.1";
+    private static final int DEFAULT_METRICS_PORT = 9464;
+    private static final int DEFAULT_AUDIO_LOADER_THREADS = 4;
+    private static final long DEFAULT_AUDIO_PRELOAD_LEAD_SECONDS = 15;
+    private static final long DEFAULT_AUDIO_FRAME_CACHE_MB = 1024;
 
     private Optional<String> getOptional(String key) {
         return Optional.ofNullable(env.getOrDefault(key, null));
@@ -27,4 +53,87 @@ public class Environment {
     public String getUserDir() {
         return getOrThrow(USER_DIR);
     }
-}
\ No newline at end of file
+
+    /**
+     * Directory for local state that should survive restarts
+     */
+    public Path getDataDirectory() {
+        return Path.of(getOptional(DATA_DIR).orElse(DEFAULT_DATA_DIR));
+    }
+
+    /**
+     * Register commands globally instead of per guild
+     */
+    public boolean isGlobalCommands() {
+        return getOptional(COMMAND_SCOPE).map(GLOBAL_COMMAND_SCOPE::equalsIgnoreCase).orElse(false);
+    }
+
+    public LaneSettings getLaneSettings() {
+        LaneSettings defaults = LaneSettings.DEFAULT;
+        return new LaneSettings(
+                getOptional(LANE_CAPACITY).map(Integer::parseInt).orElse(defaults.capacity()),
+                getOptional(LANE_OVERFLOW_POLICY).map(s -> OverflowPolicy.valueOf(s.toUpperCase())).orElse(defaults.overflowPolicy()),
+                defaults.interactionTimeout(),
+                defaults.messageTimeout());
+    }
+
+    public String getMetricsHost() {
+        return getOptional(METRICS_HOST).orElse(DEFAULT_METRICS_HOST);
+    }
+
+    /**
+     * Port for the Prometheus endpoint, 0 disables it
+     */
+    public int getMetricsPort() {
+        return getOptional(METRICS_PORT).map(Integer::parseInt).orElse(DEFAULT_METRICS_PORT);
+    }
+
+    /**
+     * Threads shared by all guilds for resolving searches and links
+     */
+    public int getAudioLoaderThreads() {
+        return getOptional(AUDIO_LOADER_THREADS).map(Integer::parseInt).orElse(DEFAULT_AUDIO_LOADER_THREADS);
+    }
+
+    /**
+     * How many guilds can be connected to voice at once, unset or 0 for no limit
+     */
+    public int getAudioMaxPlayers() {
+        return getOptional(AUDIO_MAX_PLAYERS).map(Integer::parseInt).orElse(0);
+    }
+
+    /**
+     * How long before a track ends the next one starts loading, in seconds, 0 disables preloading
+     */
+    public Duration getAudioPreloadLead() {
+        return Duration.ofSeconds(getOptional(AUDIO_PRELOAD_LEAD).map(Long::parseLong).orElse(DEFAULT_AUDIO_PRELOAD_LEAD_SECONDS));
+    }
+
+    /**
+     * Hand audio frames to the voice connection in direct buffers instead of heap buffers
+     */
+    public boolean isAudioDirectBuffers() {
+        return getOptional(AUDIO_DIRECT_BUFFERS).map(Boolean::parseBoolean).orElse(true);
+    }
+
+    /**
+     * Disk space for recorded Opus frames of played tracks, in bytes, 0 disables the frame cache
+     */
+    public long getAudioFrameCacheBytes() {
+        return getOptional(AUDIO_FRAME_CACHE_MB).map(Long::parseLong).orElse(DEFAULT_AUDIO_FRAME_CACHE_MB) * 1024 * 1024;
+    }
+
+    /**
+     * Lower encoding and resampling quality when players start missing frames
+     */
+    public boolean isAudioAdaptiveQuality() {
+        return getOptional(AUDIO_ADAPTIVE_QUALITY).map(Boolean::parseBoolean).orElse(true);
+    }
+
+    /**
+     * Conversation endpoint chat threads are answered from, e.g. a local stand-in server
+     */
+    public String getChatGPTEndpoint() {
+        return getOptional(CHATGPT_ENDPOINT).orElse(ChatGPT.CONVERSATION_ENDPOINT);
+    }
+}
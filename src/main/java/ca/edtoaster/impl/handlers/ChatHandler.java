@@ -5,26 +5,34 @@ import ca.edtoaster.annotations.CommandNamespace;
 import ca.edtoaster.annotations.Option;
 import ca.edtoaster.commands.InteractionHandlerSpec;
 import ca.edtoaster.commands.MessageHandler;
+import ca.edtoaster.commands.MessageSubscription;
 import ca.edtoaster.commands.data.ApplicationCommandInteractionData;
 import ca.edtoaster.commands.data.MessageCreateData;
 import ca.edtoaster.util.ChatGPT;
 import ca.edtoaster.util.ChatRequest;
 import ca.edtoaster.util.ChatResponse;
+import ca.edtoaster.util.ConversationIndex;
 import ca.edtoaster.util.ResponseId;
 import discord4j.common.util.Snowflake;
 import discord4j.core.DiscordClient;
 import discord4j.core.event.domain.interaction.ApplicationCommandInteractionEvent;
 import discord4j.core.object.command.Interaction;
+import discord4j.core.object.entity.Message;
 import discord4j.core.object.entity.User;
 import discord4j.core.object.entity.channel.MessageChannel;
 import discord4j.core.object.entity.channel.ThreadChannel;
 import discord4j.core.spec.MessageCreateSpec;
+import discord4j.core.spec.MessageEditSpec;
 import lombok.extern.log4j.Log4j2;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
-import reactor.util.annotation.Nullable;
+import reactor.core.publisher.Sinks;
 
+import java.time.Duration;
 import java.time.Instant;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -34,16 +42,20 @@ public class ChatHandler implements MessageHandler {
 
     private final Snowflake namespace;
     private final DiscordClient discordClient;
-    @Nullable
-    private MessageChannel monitoredChannel;
     private final ChatGPT chat;
+    private final ConversationIndex conversations;
+    // only threads under the monitored channel, nothing until the bot is summoned
+    private final Sinks.Many<MessageSubscription> subscription;
 
     private String chatGPTToken;
 
-    public ChatHandler(Snowflake namespace, DiscordClient discordClient) {
+    public ChatHandler(Snowflake namespace, DiscordClient discordClient, ChatGPT chat, ConversationIndex conversations) {
         this.namespace = namespace;
         this.discordClient = discordClient;
-        this.chat = new ChatGPT();
+        this.chat = chat;
+        this.conversations = conversations;
+        this.subscription = Sinks.many().replay().latest();
+        this.subscription.tryEmitNext(MessageSubscription.NONE);
     }
 
     @Command(description = "Setup bot to use this channel")
@@ -59,13 +71,19 @@ public class ChatHandler implements MessageHandler {
                 .then();
     }
 
-    private void monitorChannel(MessageChannel channel, String token) {
-        this.monitoredChannel = channel;
+    void monitorChannel(MessageChannel channel, String token) {
         this.chatGPTToken = token;
+        this.subscription.tryEmitNext(MessageSubscription.inThreadsOf(Set.of(channel.getId().asLong())).withoutSelf());
     }
 
-    public static InteractionHandlerSpec getInteractionHandlerSpec() {
-        return new InteractionHandlerSpec(ChatHandler.class, ChatHandler::new);
+    @Override
+    public Flux<MessageSubscription> getSubscriptions() {
+        return subscription.asFlux();
+    }
+
+    public static InteractionHandlerSpec getInteractionHandlerSpec(ChatGPT chat, ConversationIndex conversations) {
+        return new InteractionHandlerSpec(ChatHandler.class,
+                (namespace, discordClient) -> new ChatHandler(namespace, discordClient, chat, conversations));
     }
 
     @Override
@@ -73,24 +91,56 @@ public class ChatHandler implements MessageHandler {
         var event = data.getEvent();
         var message = event.getMessage();
 
-        if (data.getBotUser().equals(data.getWho())) {
-            return Mono.empty();
-        }
-
-        // check if channel is a threadchannel within monitored channel
-
+        // the subscription already limits this to threads within the monitored channel, from other authors
         return message.getChannel()
-                .cast(ThreadChannel.class)
-                .filterWhen(c -> c.getParent().map(parent -> parent.equals(monitoredChannel)))
+                .ofType(ThreadChannel.class)
                 // get parent id
-                .flatMap(c -> getLastIdsInThread(c, message.getTimestamp(), data.getBotUser()).zipWith(Mono.just(c)))
-                .flatMap(c -> chat
-                                .query(new ChatRequest(c.getT1(), message.getContent()), chatGPTToken)
-                                .map(this::createFormattedResponse)
-                                .flatMap(c.getT2()::createMessage))
+                .flatMap(c -> getConversation(c, message.getTimestamp(), data.getBotUser()).zipWith(Mono.just(c)))
+                .flatMap(c -> c.getT2().createMessage(MessageCreateSpec.create().withContent(PLACEHOLDER))
+                        .flatMap(reply -> streamInto(reply, new ChatRequest(c.getT1(), message.getContent())))
+                        .doOnNext(id -> conversations.put(c.getT2().getId().asLong(), id)))
                 .then();
     }
 
+    /**
+     * The conversation the thread continues, only read back from its history when the index has not seen it
+     */
+    private Mono<ResponseId> getConversation(ThreadChannel channel, Instant time, User user) {
+        ResponseId known = conversations.get(channel.getId().asLong());
+        if (known != null) return Mono.just(known);
+
+        return getLastIdsInThread(channel, time, user)
+                .doOnNext(id -> {
+                    if (id.getConversationId() != null) conversations.put(channel.getId().asLong(), id);
+                });
+    }
+
+    /**
+     * Edit the answer into the reply as it is generated. Edits are spaced out to stay under Discord's rate
+     * limit, only the latest text is kept while one is in flight, and the final text always lands.
+     *
+     * @return ids of the complete answer, empty when none was given
+     */
+    private Mono<ResponseId> streamInto(Message reply, ChatRequest request) {
+        AtomicReference<ChatResponse> last = new AtomicReference<>();
+        return chat.stream(request, chatGPTToken)
+                .doOnNext(last::set)
+                .sample(EDIT_INTERVAL)
+                .onBackpressureLatest()
+                .concatMap(response -> reply.edit(MessageEditSpec.create().withContentOrNull(createContent(response))), 1)
+                .switchIfEmpty(Mono.defer(() -> reply.edit(MessageEditSpec.create().withContentOrNull(createContent(null)))))
+                .onErrorResume(e -> {
+                    log.error("Conversation failed", e);
+                    // the partial answer never showed, so the thread keeps continuing from the previous one
+                    last.set(null);
+                    return reply.edit(MessageEditSpec.create().withContentOrNull(createContent(null)));
+                })
+                .then(Mono.fromSupplier(() -> last.get() == null ? null : last.get().getId()));
+    }
+
+    private static final String PLACEHOLDER = "_Thinking..._";
+    private static final Duration EDIT_INTERVAL = Duration.ofSeconds(1);
+
     private static final Pattern ID_PATTERN = Pattern.compile("^\\|\\|\\(([0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}),([0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12})\\)\\|\\|.*");
 
     /**
@@ -113,16 +163,11 @@ public class ChatHandler implements MessageHandler {
                 .switchIfEmpty(Mono.just(new ResponseId(null, UUID.randomUUID().toString())));
     }
 
-    public MessageCreateSpec createFormattedResponse(String data) {
-        ChatResponse response = ChatResponse.parse(data);
-
-        return MessageCreateSpec.create()
-                .withContent(createContent(response));
-    }
-
     public String createContent(ChatResponse response) {
         if (response == null) return "Something went wrong...";
 
-        return String.format("||(%s,%s)||%n%s", response.getId().getConversationId(), response.getId().getParentId(), response.getMessage());
+        String content = String.format("||(%s,%s)||%n%s", response.getId().getConversationId(), response.getId().getParentId(), response.getMessage());
+        // long answers are cut rather than failing the edit
+        return content.length() > Message.MAX_CONTENT_LENGTH ? content.substring(0, Message.MAX_CONTENT_LENGTH - 1) + "…" : content;
     }
 }
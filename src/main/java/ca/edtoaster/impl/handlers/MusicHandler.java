@@ -1,7 +1,10 @@
 package ca.edtoaster.impl.handlers;
 
 import ca.edtoaster.annotations.CommandNamespace;
+import ca.edtoaster.audio.PlaybackStats;
+import ca.edtoaster.audio.PlayerSnapshot;
 import ca.edtoaster.audio.TrackScheduler;
+import ca.edtoaster.commands.GuildReadyHandler;
 import ca.edtoaster.commands.InteractionHandlerSpec;
 import ca.edtoaster.annotations.ButtonListener;
 import ca.edtoaster.annotations.Command;
@@ -9,56 +12,97 @@ import ca.edtoaster.annotations.Option;
 import ca.edtoaster.commands.data.ButtonInteractionData;
 import ca.edtoaster.commands.data.ApplicationCommandInteractionData;
 import ca.edtoaster.commands.data.Whatever;
-import ca.edtoaster.impl.ExposingAudioPlayerManager;
-import com.sedmelluq.discord.lavaplayer.source.AudioSourceManagers;
+import ca.edtoaster.impl.AudioServices;
+import ca.edtoaster.metrics.BotMetrics;
 import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
-import com.sedmelluq.discord.lavaplayer.track.playback.NonAllocatingAudioFrameBuffer;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackInfo;
 import discord4j.common.util.Snowflake;
 import discord4j.core.DiscordClient;
 import discord4j.core.object.VoiceState;
 import discord4j.core.object.command.Interaction;
 import discord4j.core.object.component.ActionRow;
 import discord4j.core.object.component.Button;
+import discord4j.core.object.entity.Guild;
 import discord4j.core.object.entity.Member;
 import discord4j.core.object.entity.Message;
+import discord4j.core.object.entity.channel.VoiceChannel;
 import discord4j.core.object.reaction.ReactionEmoji;
 import discord4j.core.spec.EmbedCreateFields;
 import discord4j.core.spec.EmbedCreateSpec;
 import discord4j.core.spec.InteractionApplicationCommandCallbackSpec;
+import discord4j.core.spec.InteractionReplyEditSpec;
 import discord4j.core.spec.MessageCreateSpec;
 import discord4j.core.spec.MessageEditSpec;
+import discord4j.rest.http.client.ClientException;
 import discord4j.rest.service.ChannelService;
 import discord4j.rest.util.Color;
 import discord4j.voice.VoiceConnection;
+import io.micrometer.core.instrument.Meter;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.extern.log4j.Log4j2;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
 import java.util.stream.Collectors;
 
 
 @Log4j2
 @CommandNamespace(name="m", description = "Music commands")
-public class MusicHandler {
+public class MusicHandler implements Disposable, GuildReadyHandler {
     private final Snowflake namespace;
     private final DiscordClient discordClient;
     private final ChannelService channelService;
 
+    @Getter(AccessLevel.PACKAGE)
     private final TrackScheduler trackScheduler;
-    private final ExposingAudioPlayerManager playerManager;
+    private final AudioServices audioServices;
+    // whether this guild holds one of the shared player slots
+    private final AtomicBoolean holdsPlayer = new AtomicBoolean();
+    private final List<Meter> playbackMeters = new ArrayList<>();
 
     // Keeps the previous queue type interactions here, to delete later.
     private final AtomicReference<Message> previousQueueMessage;
 
+    // scheduler changes that land within this window go out as a single edit
+    private static final Duration REFRESH_WINDOW = Duration.ofMillis(750);
+    // how often the progress shown in the queue message moves while a track plays
+    private static final Duration PROGRESS_TICK = Duration.ofSeconds(15);
+
+    private final AtomicBoolean refreshScheduled = new AtomicBoolean();
+    private final Disposable.Swap pendingRefresh = Disposables.swap();
+    // notices Discord dropping the voice connection (kicked, channel deleted) so the player slot is freed
+    private final Disposable.Swap voiceWatch = Disposables.swap();
+    private final Object progressLock = new Object();
+    private Disposable progressTicker; // guarded by progressLock
+
+    private record RenderedQueue(long version, long progressBucket, EmbedCreateSpec embed, List<Button> buttons) {
+    }
+
+    private volatile RenderedQueue rendered;
+    // last render that went out to discord, so unchanged renders never cost a REST call
+    private volatile RenderedQueue lastSent;
+
 
     // stateful stuff, like audio connections
     VoiceConnection currentVoiceConnection;
+    // channel of the current connection, saved with the player so a restart can rejoin it
+    private volatile long voiceChannelId;
 
     private enum PlayPauseControl {
         PLAY_PAUSE("PLAY_PAUSE"),
@@ -81,33 +125,217 @@ public class MusicHandler {
         }
     }
 
-    public MusicHandler(Snowflake namespace, DiscordClient discordClient) {
+    public MusicHandler(Snowflake namespace, DiscordClient discordClient, AudioServices audioServices) {
         this.namespace = namespace;
         this.discordClient = discordClient;
+        this.audioServices = audioServices;
         this.currentVoiceConnection = null;
         this.previousQueueMessage = new AtomicReference<>();
         this.channelService = discordClient.getChannelService();
 
-        this.playerManager = new ExposingAudioPlayerManager();
-        playerManager.getConfiguration().setFrameBufferFactory(NonAllocatingAudioFrameBuffer::new);
-        AudioSourceManagers.registerRemoteSources(playerManager);
+        this.trackScheduler = new TrackScheduler(audioServices.getPlayerManager(),
+                audioServices.getTrackCodec(),
+                audioServices.getTrackCache(),
+                audioServices.getFrameCache(),
+                audioServices.getPreloadLead(),
+                audioServices.isDirectBuffers(),
+                this::onSchedulerChange);
+        registerPlaybackMetrics(trackScheduler.getProvider().getStats());
+        audioServices.getGovernor().watch(trackScheduler.getProvider().getStats());
+    }
+
+    private void registerPlaybackMetrics(PlaybackStats stats) {
+        String[] tags = {"guild", namespace.asString()};
+        playbackMeters.add(BotMetrics.registerCounter(stats, "toastbot.music.frames.provided", PlaybackStats::getProvided, tags));
+        playbackMeters.add(BotMetrics.registerCounter(stats, "toastbot.music.frames.missed", PlaybackStats::getMissed, tags));
+        playbackMeters.add(BotMetrics.registerCounter(stats, "toastbot.music.frames.bursts", PlaybackStats::getBursts, tags));
+        playbackMeters.addAll(BotMetrics.registerGauges(stats, "toastbot.music.frames", Map.<String, ToDoubleFunction<PlaybackStats>>of(
+                "burst.longest", PlaybackStats::getLongestBurst,
+                "provide.max", s -> s.getMaxProvideNanos() / 1e9), tags));
+    }
+
+    @Override
+    public void dispose() {
+        // the bot was removed from the guild, so the voice connection is already gone
+        pendingRefresh.dispose();
+        voiceWatch.dispose();
+        synchronized (progressLock) {
+            if (progressTicker != null) progressTicker.dispose();
+            progressTicker = null;
+        }
+        audioServices.getStateStore().detach(namespace.asLong());
+        BotMetrics.unregister(playbackMeters);
+        audioServices.getGovernor().unwatch(trackScheduler.getProvider().getStats());
+        trackScheduler.destroy();
+        releasePlayer();
+    }
+
+    /**
+     * Resume what was playing before a restart if someone is still in the voice channel to hear it. Otherwise
+     * the saved queue waits for the next summon.
+     */
+    @Override
+    public Mono<Void> onGuildReady(Guild guild) {
+        // still connected after an outage, nothing to pick up
+        if (Objects.nonNull(this.currentVoiceConnection)) return Mono.empty();
+
+        Optional<PlayerSnapshot> saved = audioServices.getStateStore().peekSaved(namespace.asLong());
+        if (saved.isEmpty()) return Mono.empty();
+
+        Snowflake channelId = Snowflake.of(saved.get().voiceChannelId());
+        return guild.getVoiceStates()
+                .filter(state -> state.getChannelId().map(channelId::equals).orElse(false))
+                .flatMap(VoiceState::getMember)
+                .any(member -> !member.isBot())
+                .flatMap(listening -> {
+                    if (listening) return resume(guild, channelId);
+                    log.info(String.format("[Guild %s] Nobody is listening, keeping the saved queue for the next summon",
+                            namespace.asString()));
+                    return Mono.empty();
+                });
+    }
+
+    private Mono<Void> resume(Guild guild, Snowflake channelId) {
+        if (!acquirePlayer()) {
+            // only happens with AUDIO_MAX_PLAYERS set, the saved queue still waits for a summon
+            log.warn(String.format("[Guild %s] Too many players to resume playback", namespace.asString()));
+            return Mono.empty();
+        }
+        // a summon may have claimed it in the meantime
+        Optional<PlayerSnapshot> taken = audioServices.getStateStore().takeSaved(namespace.asLong());
+        if (taken.isEmpty() || Objects.nonNull(this.currentVoiceConnection)) {
+            if (Objects.isNull(this.currentVoiceConnection)) releasePlayer();
+            return Mono.empty();
+        }
+        PlayerSnapshot snapshot = taken.get();
+
+        // tracks start loading while the voice connection is set up
+        trackScheduler.restore(snapshot);
+        return guild.getChannelById(channelId)
+                .ofType(VoiceChannel.class)
+                .flatMap(c -> c.join(spec -> spec.setProvider(trackScheduler.getProvider())))
+                .doOnNext(v -> {
+                    connected(v, channelId);
+                    log.info(String.format("[Guild %s] Resumed playback with %d queued tracks",
+                            namespace.asString(), snapshot.queue().size()));
+                })
+                .switchIfEmpty(Mono.fromRunnable(() -> {
+                    // the channel is gone, so is the reason to keep the queue
+                    log.info(String.format("[Guild %s] Saved voice channel is gone, dropping the saved queue", namespace.asString()));
+                    disconnectVoiceConnection().subscribe();
+                }))
+                .doOnError(e -> {
+                    trackScheduler.resetPlayer();
+                    releasePlayer();
+                })
+                .then();
+    }
+
+    /**
+     * Pick up the queue saved before a restart when the bot is summoned into an idle player
+     */
+    private void restoreSaved() {
+        if (!trackScheduler.isIdle()) return;
+        audioServices.getStateStore().takeSaved(namespace.asLong()).ifPresent(snapshot -> {
+            trackScheduler.restore(snapshot);
+            log.info(String.format("[Guild %s] Restored the saved queue of %d tracks on summon",
+                    namespace.asString(), snapshot.queue().size()));
+        });
+    }
+
+    private void connected(VoiceConnection connection, Snowflake channelId) {
+        this.currentVoiceConnection = connection;
+        this.voiceChannelId = channelId.asLong();
+        audioServices.getStateStore().attach(namespace.asLong(),
+                () -> trackScheduler.snapshot(voiceChannelId), trackScheduler::getPosition);
+
+        // reconnects go through RECONNECTING, only a connection that is gone for good ends up DISCONNECTED
+        voiceWatch.update(connection.stateEvents()
+                .filter(state -> state == VoiceConnection.State.DISCONNECTED)
+                .next()
+                .filter(state -> this.currentVoiceConnection == connection)
+                .subscribe(state -> {
+                    log.info(String.format("[Guild %s] Voice connection was dropped", namespace.asString()));
+                    disconnectVoiceConnection().subscribe();
+                }));
+    }
+
+    /**
+     * Called by the scheduler on any thread whenever the queue or the player changed
+     */
+    private void onSchedulerChange() {
+        audioServices.getStateStore().markDirty(namespace.asLong());
+        requestRefresh();
+        updateProgressTicker();
+    }
+
+    private void requestRefresh() {
+        // without a queue message there is nothing to keep up to date
+        if (Objects.isNull(previousQueueMessage.get())) return;
+        if (!refreshScheduled.compareAndSet(false, true)) return;
+
+        pendingRefresh.update(Mono.delay(REFRESH_WINDOW)
+                // cleared before rendering, so a change made during the edit schedules another one
+                .doOnNext(t -> refreshScheduled.set(false))
+                .flatMap(t -> refreshQueueMessages())
+                .subscribe());
+    }
+
+    /**
+     * Tick only while there is progress to show, so idle guilds have no timers at all
+     */
+    private void updateProgressTicker() {
+        boolean shouldTick = Objects.nonNull(previousQueueMessage.get())
+                && trackScheduler.isTrackPlaying()
+                && !trackScheduler.isPaused();
+
+        synchronized (progressLock) {
+            if (shouldTick == Objects.nonNull(progressTicker)) return;
+
+            if (shouldTick) {
+                progressTicker = Flux.interval(PROGRESS_TICK, PROGRESS_TICK).subscribe(t -> requestRefresh());
+            } else {
+                progressTicker.dispose();
+                progressTicker = null;
+            }
+        }
+    }
+
+    /**
+     * Render the queue message, reusing the last render while neither the scheduler nor the shown progress changed
+     */
+    private RenderedQueue render() {
+        long version = trackScheduler.getVersion();
+        long progressBucket = trackScheduler.getPosition() / PROGRESS_TICK.toMillis();
+
+        RenderedQueue cached = rendered;
+        if (Objects.nonNull(cached) && cached.version() == version && cached.progressBucket() == progressBucket) {
+            return cached;
+        }
 
-        this.trackScheduler = new TrackScheduler(playerManager, this);
+        cached = new RenderedQueue(version, progressBucket, renderQueueMessageEmbed(), renderQueueMessageButtons());
+        rendered = cached;
+        return cached;
+    }
 
-        // setup recurring refreshes
-        Flux.interval(Duration.ofMillis(5000))
-                .flatMap(l -> this.refreshQueueMessages())
-                .doOnNext(i -> log.info("Refreshed " + i + " messages"))
-                .subscribe();
+    private RenderedQueue renderForSending() {
+        RenderedQueue render = render();
+        lastSent = render;
+        return render;
     }
 
     private InteractionApplicationCommandCallbackSpec constructQueueMessage() {
+        RenderedQueue render = renderForSending();
         return InteractionApplicationCommandCallbackSpec.create()
-                .withEmbeds(getQueueMessageEmbed())
-                .withComponents(ActionRow.of(getQueueMessageButtons()));
+                .withEmbeds(render.embed())
+                .withComponents(ActionRow.of(render.buttons()));
+    }
+
+    EmbedCreateSpec getQueueMessageEmbed() {
+        return render().embed();
     }
 
-    private EmbedCreateSpec getQueueMessageEmbed() {
+    EmbedCreateSpec renderQueueMessageEmbed() {
         String currentlyPlaying = this.trackScheduler.getCurrentlyPlaying();
         String queue = this.trackScheduler.getUpNext();
         EmbedCreateFields.Field queueField = EmbedCreateFields.Field.of("Up Next:", queue, false);
@@ -119,7 +347,7 @@ public class MusicHandler {
                 .withColor(Color.PINK);
     }
 
-    private List<Button> getQueueMessageButtons() {
+    private List<Button> renderQueueMessageButtons() {
         return List.of(
                 Button.primary(PlayPauseControl.PLAY_PAUSE.getButtonID(),
                         trackScheduler.isPaused() ? ReactionEmoji.unicode("\u25B6") : ReactionEmoji.unicode("\u23F8"),
@@ -144,17 +372,21 @@ public class MusicHandler {
         return event.reply("Showing queue").withEphemeral(true)
                 .then(this.deletePreviousQueueMessages())
                 .then(interaction.getChannel())
-                .flatMap(channel ->
-                        channel.createMessage(
-                                MessageCreateSpec.create()
-                                        .withEmbeds(getQueueMessageEmbed())
-                                        .withComponents(ActionRow.of(getQueueMessageButtons()))))
+                .flatMap(channel -> {
+                    RenderedQueue render = renderForSending();
+                    return channel.createMessage(
+                            MessageCreateSpec.create()
+                                    .withEmbeds(render.embed())
+                                    .withComponents(ActionRow.of(render.buttons())));
+                })
                 .doOnNext(this.previousQueueMessage::set)
+                .doOnNext(m -> updateProgressTicker())
                 .then();
     }
 
     private Mono<Void> deletePreviousQueueMessages() {
         Message prev = this.previousQueueMessage.getAndSet(null);
+        updateProgressTicker();
 
         return Mono.justOrEmpty(prev)
                 .flatMap(Message::delete)
@@ -163,14 +395,29 @@ public class MusicHandler {
     }
 
     public Mono<Integer> refreshQueueMessages() {
-        return Mono.justOrEmpty(this.previousQueueMessage.get())
-                .flatMap(message -> message.edit(
+        Message message = this.previousQueueMessage.get();
+        if (Objects.isNull(message)) {
+            return Mono.just(0);
+        }
+
+        RenderedQueue render = render();
+        if (render == lastSent) {
+            return Mono.just(0);
+        }
+        lastSent = render;
+
+        return message.edit(
                         MessageEditSpec.create()
-                                .withEmbeds(getQueueMessageEmbed())
-                                .withComponents(ActionRow.of(getQueueMessageButtons()))))
+                                .withEmbeds(render.embed())
+                                .withComponents(ActionRow.of(render.buttons())))
+                .onErrorResume(ClientException.isStatusCode(404), e -> {
+                    // someone deleted the queue message, stop keeping it up to date
+                    this.previousQueueMessage.compareAndSet(message, null);
+                    updateProgressTicker();
+                    return Mono.empty();
+                })
                 .onErrorResume(e -> Mono.empty())
-                .doOnNext(this.previousQueueMessage::set)
-                .doOnError(log::fatal)
+                .doOnNext(m -> this.previousQueueMessage.compareAndSet(message, m))
                 .map(m -> 1)
                 .switchIfEmpty(Mono.just(0));
     }
@@ -217,14 +464,16 @@ public class MusicHandler {
                            @Option(name="video", description="Youtube video link or playlist")
                            String url) {
         var event = data.getEvent();
+        // searches can take longer than Discord waits for an answer, so the reply is deferred first
         return Mono.justOrEmpty(this.currentVoiceConnection)
-                .flatMap(v -> trackScheduler.queueTracks(url)
-                        .collect(Collectors.toList())
-                        .map(l -> l.isEmpty() ? "No song found" : String.format("Queued %s tracks", l.size()))
-                        .onErrorReturn("No song found")
-                        .doOnNext(log::info))
-                .flatMap(titles -> event.reply(
-                        InteractionApplicationCommandCallbackSpec.create()
+                .flatMap(v -> event.deferReply()
+                        .then(trackScheduler.queueTracks(url)
+                                .collect(Collectors.toList())
+                                .map(l -> l.isEmpty() ? "No song found" : String.format("Queued %s tracks", l.size()))
+                                .onErrorReturn("No song found")
+                                .doOnNext(log::info)))
+                .flatMap(titles -> event.editReply(
+                        InteractionReplyEditSpec.create()
                                 .withEmbeds(EmbedCreateSpec.create()
                                         .withDescription(titles)
                                         .withColor(Color.MOON_YELLOW)))
@@ -252,27 +501,139 @@ public class MusicHandler {
         return data.getEvent().reply(String.format("Volume set to %d", vol.intValue())).withEphemeral(true);
     }
 
+    private boolean acquirePlayer() {
+        if (!holdsPlayer.compareAndSet(false, true)) {
+            return true;
+        }
+        if (audioServices.tryAcquirePlayer()) {
+            return true;
+        }
+        holdsPlayer.set(false);
+        return false;
+    }
+
+    private void releasePlayer() {
+        if (holdsPlayer.compareAndSet(true, false)) {
+            audioServices.releasePlayer();
+        }
+    }
+
+    private static final int QUEUE_PAGE_SIZE = 15;
+
+    private Mono<Void> replyQueueEdit(ApplicationCommandInteractionData data, Supplier<String> edit) {
+        String reply;
+        try {
+            reply = edit.get();
+        } catch (IndexOutOfBoundsException e) {
+            // the player took a track off the front in the meantime
+            reply = "The queue changed, check the positions and try again";
+        }
+        return data.getEvent().reply(reply).withEphemeral(true);
+    }
+
+    private String outOfRange(long position) {
+        return String.format("Position %d is not in the queue [1-%d]", position, trackScheduler.getQueueSize());
+    }
+
+    private boolean inQueue(long position) {
+        return position >= 1 && position <= trackScheduler.getQueueSize();
+    }
+
+    @Command(description = "Show a page of the queue, with when each song should start")
+    public Mono<Void> page(ApplicationCommandInteractionData data,
+                           @Option(name = "page", description = "Page number", required = false) Long page) {
+        int index = Objects.isNull(page) ? 0 : (int) Math.max(0, page - 1);
+        return data.getEvent().reply(trackScheduler.getQueuePage(index, QUEUE_PAGE_SIZE)).withEphemeral(true);
+    }
+
+    @Command(description = "Remove a song from the queue")
+    public Mono<Void> remove(ApplicationCommandInteractionData data,
+                             @Option(name = "position", description = "Position in the queue") Long position) {
+        return replyQueueEdit(data, () -> {
+            if (!inQueue(position)) return outOfRange(position);
+            AudioTrackInfo removed = trackScheduler.removeTrack(position.intValue() - 1);
+            return String.format("Removed %s", Objects.isNull(removed) ? "a song" : removed.title);
+        });
+    }
+
+    @Command(description = "Remove a range of songs from the queue")
+    public Mono<Void> prune(ApplicationCommandInteractionData data,
+                            @Option(name = "from", description = "First position to remove") Long from,
+                            @Option(name = "to", description = "Last position to remove") Long to) {
+        return replyQueueEdit(data, () -> {
+            if (!inQueue(from)) return outOfRange(from);
+            if (!inQueue(to)) return outOfRange(to);
+            if (from > to) return "The first position has to come before the last one";
+            int removed = trackScheduler.removeTracks(from.intValue() - 1, to.intValue());
+            return String.format("Removed %d songs", removed);
+        });
+    }
+
+    @Command(description = "Move a song to another position in the queue")
+    public Mono<Void> move(ApplicationCommandInteractionData data,
+                           @Option(name = "from", description = "Position of the song") Long from,
+                           @Option(name = "to", description = "Position to move it to") Long to) {
+        return replyQueueEdit(data, () -> {
+            if (!inQueue(from)) return outOfRange(from);
+            if (!inQueue(to)) return outOfRange(to);
+            trackScheduler.moveTrack(from.intValue() - 1, to.intValue() - 1);
+            return String.format("Moved song %d to position %d", from, to);
+        });
+    }
+
+    @Command(description = "Remove repeated songs from the queue")
+    public Mono<Void> dedupe(ApplicationCommandInteractionData data) {
+        return replyQueueEdit(data, () -> String.format("Removed %d repeated songs", trackScheduler.dedupeQueue()));
+    }
+
+    @Command(description = "Shuffle the queue")
+    public Mono<Void> shuffle(ApplicationCommandInteractionData data) {
+        return replyQueueEdit(data, () -> {
+            trackScheduler.shuffleQueue();
+            return String.format("Shuffled %d songs", trackScheduler.getQueueSize());
+        });
+    }
+
     @Command(description = "Summon the bot to join a voice channel")
     public Mono<Void> summon(ApplicationCommandInteractionData data) {
         var event = data.getEvent();
         Interaction interaction = event.getInteraction();
 
-        return Mono.justOrEmpty(interaction.getMember())
+        if (!acquirePlayer()) {
+            return event.reply("Too many servers are playing music right now, try again later").withEphemeral(true);
+        }
+
+        // joining voice can take longer than Discord waits for an answer, so the reply is deferred first
+        return event.deferReply().withEphemeral(true)
+                .then(Mono.justOrEmpty(interaction.getMember()))
                 .flatMap(Member::getVoiceState)
                 .flatMap(VoiceState::getChannel)
                 .doOnNext(v -> log.info("Found a voice channel!" + v.getName()))
-                .flatMap(c -> c.join(spec -> spec.setProvider(trackScheduler.getProvider())))
-                .doOnNext(v -> this.currentVoiceConnection = v)
-                .flatMap(v -> event.reply("Connected!").withEphemeral(true).then(emit()))
-                .switchIfEmpty(event.reply("You must be in a voice channel to summon the bot!").withEphemeral(true).then(emit()))
+                .flatMap(c -> c.join(spec -> spec.setProvider(trackScheduler.getProvider()))
+                        .doOnNext(v -> {
+                            connected(v, c.getId());
+                            restoreSaved();
+                        }))
+                .flatMap(v -> event.editReply("Connected!").then(emit()))
+                .switchIfEmpty(Mono.defer(() -> {
+                    if (Objects.isNull(this.currentVoiceConnection)) releasePlayer();
+                    return event.editReply("You must be in a voice channel to summon the bot!").then(emit());
+                }))
+                .doOnError(e -> {
+                    if (Objects.isNull(this.currentVoiceConnection)) releasePlayer();
+                })
                 .then();
     }
 
     private Mono<Whatever> disconnectVoiceConnection() {
         // clear queue
+        audioServices.getStateStore().detach(namespace.asLong());
         trackScheduler.resetPlayer();
+        releasePlayer();
 
-        return Mono.justOrEmpty(this.currentVoiceConnection)
+        VoiceConnection connection = this.currentVoiceConnection;
+        this.currentVoiceConnection = null;
+        return Mono.justOrEmpty(connection)
                 .flatMap(v -> v.disconnect().then(emit()));
     }
 
@@ -287,17 +648,43 @@ public class MusicHandler {
                 .then();
     }
 
+    @Command(description = "Audio frame statistics for this server")
+    public Mono<Void> stats(ApplicationCommandInteractionData data) {
+        PlaybackStats stats = trackScheduler.getProvider().getStats();
+
+        // misses next to long GC pauses point at the JVM, slow provide calls at decoding, neither at the network
+        long gcCount = 0;
+        long gcMillis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += Math.max(0, gc.getCollectionCount());
+            gcMillis += Math.max(0, gc.getCollectionTime());
+        }
+
+        String reply = String.format("**Frames** %d provided, %d missed (%.2f%%)%n"
+                        + "**Miss bursts** %d, longest %d frames (%dms)%n"
+                        + "**provide()** mean %.1fus, max %.1fus%n"
+                        + "**Buffer** %s, quality level %d%n"
+                        + "**GC** %d collections, %dms total",
+                stats.getProvided(), stats.getMissed(), stats.getMissRatio() * 100,
+                stats.getBursts(), stats.getLongestBurst(), stats.getLongestBurst() * 20,
+                stats.getMeanProvideMicros(), stats.getMaxProvideMicros(),
+                trackScheduler.getProvider().isDirect() ? "direct" : "heap", audioServices.getGovernor().getLevel(),
+                gcCount, gcMillis);
+        return data.getEvent().reply(reply).withEphemeral(true);
+    }
+
     @Command(description = "Get supported protocols")
     public Mono<Void> help(ApplicationCommandInteractionData data) {
         var event = data.getEvent();
 
         log.info("Getting supported protocols");
-        List<String> supportedManagers = playerManager.getManagers().stream().map(s -> "-- `" + s + "`").collect(Collectors.toList());
+        List<String> supportedManagers = audioServices.getPlayerManager().getManagers().stream().map(s -> "-- `" + s + "`").collect(Collectors.toList());
         return event.reply("Supported audio sources are:\n" + String.join("\n", supportedManagers)).withEphemeral(true);
     }
 
-    public static InteractionHandlerSpec getInteractionHandlerSpec() {
-        return new InteractionHandlerSpec(MusicHandler.class, MusicHandler::new);
+    public static InteractionHandlerSpec getInteractionHandlerSpec(AudioServices audioServices) {
+        return new InteractionHandlerSpec(MusicHandler.class,
+                (namespace, discordClient) -> new MusicHandler(namespace, discordClient, audioServices));
     }
 
     private Mono<Whatever> emit() {
@@ -5,6 +5,7 @@ import ca.edtoaster.annotations.CommandNamespace;
 import ca.edtoaster.annotations.Option;
 import ca.edtoaster.commands.InteractionHandlerSpec;
 import ca.edtoaster.commands.data.ApplicationCommandInteractionData;
+import ca.edtoaster.metrics.BotMetrics;
 import ca.edtoaster.util.Utils;
 import discord4j.common.util.Snowflake;
 import discord4j.core.DiscordClient;
@@ -105,4 +106,9 @@ public class UtilityHandler {
         var event = data.getEvent();
         return event.reply(String.format("Namespace: %s\nServer Invite Link: %s", namespace.asString(), Utils.getServerInviteLink(data.getBotUser()))).withEphemeral(true);
     }
+
+    @Command(description = "Latency and throughput since startup")
+    public Mono<Void> stats(ApplicationCommandInteractionData data) {
+        return data.getEvent().reply(BotMetrics.summarize()).withEphemeral(true);
+    }
 }
@@ -0,0 +1,211 @@
+package ca.edtoaster.metrics;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import lombok.extern.log4j.Log4j2;
+import org.reactivestreams.Publisher;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.Collectors;
+
+/**
+ * Process wide metrics. Everything is recorded into a single Prometheus registry, which is also added to
+ * Micrometer's global registry so library metrics (e.g. reactor-netty pools) end up in the same scrape.
+ */
+@Log4j2
+public final class BotMetrics {
+    public static final PrometheusMeterRegistry REGISTRY = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+    static {
+        Metrics.addRegistry(REGISTRY);
+    }
+
+    public static final String INTERACTIONS = "toastbot.interactions";
+    public static final String EVENTS = "toastbot.events";
+    public static final String EVENT_LOOP_LAG = "toastbot.eventloop.lag";
+
+    private static final int MAX_SUMMARY_LENGTH = 1900;
+
+    private static final Map<String, AtomicInteger> inFlight = new ConcurrentHashMap<>();
+
+    private BotMetrics() {
+    }
+
+    /**
+     * Latency timer with percentiles and an HDR backed histogram, bounded to what a Discord interaction can take
+     */
+    public static Timer timer(String name, String... tags) {
+        return timer(name, Duration.ofMillis(1), Duration.ofMinutes(1), tags);
+    }
+
+    /**
+     * Same as {@link #timer(String, String...)}, for things that take far less or far more than an interaction
+     */
+    public static Timer timer(String name, Duration min, Duration max, String... tags) {
+        return Timer.builder(name)
+                .tags(tags)
+                .publishPercentiles(0.5, 0.9, 0.99)
+                .publishPercentileHistogram()
+                .minimumExpectedValue(min)
+                .maximumExpectedValue(max)
+                .register(REGISTRY);
+    }
+
+    public static void countEvent(String type) {
+        REGISTRY.counter(EVENTS, "type", type).increment();
+    }
+
+    private static AtomicInteger inFlight(String kind) {
+        return inFlight.computeIfAbsent(kind, k -> REGISTRY.gauge("toastbot.interactions.inflight",
+                List.of(Tag.of("kind", k)), new AtomicInteger()));
+    }
+
+    private static String outcome(SignalType signal) {
+        switch (signal) {
+            case ON_COMPLETE: return "success";
+            case ON_ERROR: return "error";
+            default: return "cancelled";
+        }
+    }
+
+    /**
+     * Time a dispatched event from subscription until it terminates, tracking how many are in flight
+     */
+    public static <T> Flux<T> timeInteraction(String kind, String namespace, String command, Publisher<T> publisher) {
+        AtomicInteger gauge = inFlight(kind);
+        return Flux.defer(() -> {
+            Timer.Sample sample = Timer.start(REGISTRY);
+            gauge.incrementAndGet();
+            return Flux.from(publisher).doFinally(signal -> {
+                gauge.decrementAndGet();
+                sample.stop(timer(INTERACTIONS,
+                        "kind", kind,
+                        "namespace", namespace,
+                        "command", command,
+                        "outcome", outcome(signal)));
+            });
+        });
+    }
+
+    public static <T> Mono<T> time(String name, Mono<T> mono, String... tags) {
+        return Mono.defer(() -> {
+            Timer.Sample sample = Timer.start(REGISTRY);
+            return mono.doFinally(signal -> sample.stop(timer(name, withOutcome(tags, signal))));
+        });
+    }
+
+    public static <T> Flux<T> time(String name, Flux<T> flux, String... tags) {
+        return Flux.defer(() -> {
+            Timer.Sample sample = Timer.start(REGISTRY);
+            return flux.doFinally(signal -> sample.stop(timer(name, withOutcome(tags, signal))));
+        });
+    }
+
+    private static String[] withOutcome(String[] tags, SignalType signal) {
+        String[] result = new String[tags.length + 2];
+        System.arraycopy(tags, 0, result, 0, tags.length);
+        result[tags.length] = "outcome";
+        result[tags.length + 1] = outcome(signal);
+        return result;
+    }
+
+    /**
+     * Register gauges over some object, returning the meters so they can be removed together later
+     */
+    public static <T> List<Meter> registerGauges(T obj, String prefix, Map<String, ToDoubleFunction<T>> gauges, String... tags) {
+        return gauges.entrySet().stream()
+                .map(e -> (Meter) Gauge.builder(prefix + "." + e.getKey(), obj, e.getValue())
+                        .tags(tags)
+                        .register(REGISTRY))
+                .collect(Collectors.toList());
+    }
+
+    public static <T> Meter registerCounter(T obj, String name, ToDoubleFunction<T> count, String... tags) {
+        return FunctionCounter.builder(name, obj, count).tags(tags).register(REGISTRY);
+    }
+
+    public static void unregister(List<Meter> meters) {
+        meters.forEach(REGISTRY::remove);
+    }
+
+    /**
+     * Measure how late timer tasks on the parallel scheduler fire. Reactor's timers and most pipeline work
+     * run there, so lag shows up as soon as those threads are saturated.
+     */
+    public static void startEventLoopLagProbe(Duration interval) {
+        Timer lag = timer(EVENT_LOOP_LAG);
+        probe(Schedulers.parallel(), interval.toNanos(), System.nanoTime(), lag);
+    }
+
+    private static void probe(Scheduler scheduler, long periodNanos, long scheduledAt, Timer lag) {
+        scheduler.schedule(() -> {
+            long now = System.nanoTime();
+            lag.record(Math.max(0, now - scheduledAt - periodNanos), TimeUnit.NANOSECONDS);
+            probe(scheduler, periodNanos, now, lag);
+        }, periodNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private static double percentile(HistogramSnapshot snapshot, double percentile) {
+        for (ValueAtPercentile value : snapshot.percentileValues()) {
+            if (value.percentile() == percentile) {
+                return value.value(TimeUnit.MILLISECONDS);
+            }
+        }
+        return Double.NaN;
+    }
+
+    private static String describe(Timer timer) {
+        HistogramSnapshot snapshot = timer.takeSnapshot();
+        return String.format("%d calls, p50 %.0fms, p99 %.0fms, max %.0fms",
+                snapshot.count(),
+                percentile(snapshot, 0.5),
+                percentile(snapshot, 0.99),
+                snapshot.max(TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Short, human readable summary for the stats command
+     */
+    public static String summarize() {
+        StringBuilder builder = new StringBuilder("**Interactions**\n");
+
+        REGISTRY.find(INTERACTIONS).timers().stream()
+                .sorted(Comparator.comparing(t -> t.getId().getTags().toString()))
+                .forEach(t -> builder.append(String.format("`%s %s %s` (%s) %s%n",
+                        t.getId().getTag("kind"),
+                        t.getId().getTag("namespace"),
+                        t.getId().getTag("command"),
+                        t.getId().getTag("outcome"),
+                        describe(t))));
+
+        builder.append("**In flight**\n");
+        inFlight.forEach((kind, count) -> builder.append(String.format("`%s` %d%n", kind, count.get())));
+
+        Timer lag = REGISTRY.find(EVENT_LOOP_LAG).timer();
+        if (lag != null) {
+            builder.append("**Event loop lag**\n").append(describe(lag)).append('\n');
+        }
+
+        String summary = builder.toString();
+        return summary.length() > MAX_SUMMARY_LENGTH ? summary.substring(0, MAX_SUMMARY_LENGTH) + "\n..." : summary;
+    }
+}
@@ -0,0 +1,27 @@
+package ca.edtoaster.metrics;
+
+import lombok.extern.log4j.Log4j2;
+import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+
+/**
+ * Serves the metrics registry in Prometheus text format on a local port
+ */
+@Log4j2
+public class MetricsServer {
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    public static DisposableServer start(String host, int port) {
+        DisposableServer server = HttpServer.create()
+                .host(host)
+                .port(port)
+                .route(routes -> routes.get("/metrics", (request, response) -> response
+                        .header("Content-Type", CONTENT_TYPE)
+                        .sendString(Mono.fromCallable(BotMetrics.REGISTRY::scrape))))
+                .bindNow();
+
+        log.info(String.format("Serving metrics on http://%s:%d/metrics", host, server.port()));
+        return server;
+    }
+}
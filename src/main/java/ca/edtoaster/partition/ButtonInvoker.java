@@ -0,0 +1,12 @@
+package ca.edtoaster.partition;
+
+import ca.edtoaster.commands.data.ButtonInteractionData;
+import org.reactivestreams.Publisher;
+
+/**
+ * Typed entry point into a @ButtonListener method, bound once at registration.
+ */
+@FunctionalInterface
+public interface ButtonInvoker {
+    Publisher<?> invoke(Object handler, ButtonInteractionData data);
+}
@@ -0,0 +1,118 @@
+package ca.edtoaster.partition;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Routes a button custom ID to the single listener whose prefix it starts with.
+ * Prefixes live in a trie built at registration, so a click resolves in time proportional to the length
+ * of the ID without allocating. Prefixes that are equal to, or a prefix of, another are rejected up front,
+ * since both listeners would otherwise claim the same clicks.
+ */
+public class ButtonRouter {
+    public static final int NO_ROUTE = -1;
+
+    private static final char[] NO_LABELS = new char[0];
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    private static final class Node {
+        // sorted, so children can be binary searched
+        private char[] labels = NO_LABELS;
+        private Node[] children = NO_CHILDREN;
+        private int route = NO_ROUTE;
+
+        private Node child(char c) {
+            int i = Arrays.binarySearch(labels, c);
+            return i < 0 ? null : children[i];
+        }
+
+        private Node getOrAddChild(char c) {
+            int i = Arrays.binarySearch(labels, c);
+            if (i >= 0) {
+                return children[i];
+            }
+
+            int insertAt = -(i + 1);
+            Node child = new Node();
+
+            char[] newLabels = new char[labels.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(labels, 0, newLabels, 0, insertAt);
+            System.arraycopy(children, 0, newChildren, 0, insertAt);
+            newLabels[insertAt] = c;
+            newChildren[insertAt] = child;
+            System.arraycopy(labels, insertAt, newLabels, insertAt + 1, labels.length - insertAt);
+            System.arraycopy(children, insertAt, newChildren, insertAt + 1, children.length - insertAt);
+
+            labels = newLabels;
+            children = newChildren;
+            return child;
+        }
+    }
+
+    private final Node root;
+
+    private ButtonRouter(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * Build a router where route i belongs to prefixes.get(i)
+     */
+    public static ButtonRouter of(List<String> prefixes) {
+        Node root = new Node();
+
+        for (int route = 0; route < prefixes.size(); route++) {
+            String prefix = prefixes.get(route);
+            Node node = root;
+            for (int i = 0; i < prefix.length(); i++) {
+                if (node.route != NO_ROUTE) {
+                    throw conflict(prefixes.get(node.route), prefix);
+                }
+                node = node.getOrAddChild(prefix.charAt(i));
+            }
+
+            if (node.route != NO_ROUTE) {
+                throw conflict(prefixes.get(node.route), prefix);
+            }
+            if (node.children.length > 0) {
+                throw conflict(firstRouteBelow(node, prefixes), prefix);
+            }
+            node.route = route;
+        }
+
+        return new ButtonRouter(root);
+    }
+
+    private static String firstRouteBelow(Node node, List<String> prefixes) {
+        while (node.route == NO_ROUTE) {
+            node = node.children[0];
+        }
+        return prefixes.get(node.route);
+    }
+
+    private static IllegalArgumentException conflict(String existing, String prefix) {
+        return new IllegalArgumentException(
+                String.format("Button prefix \"%s\" conflicts with button prefix \"%s\"", prefix, existing));
+    }
+
+    /**
+     * Returns the route for this custom ID, or NO_ROUTE if no listener claims it
+     */
+    public int route(String customId) {
+        Node node = root;
+        int length = customId.length();
+        for (int i = 0; ; i++) {
+            if (node.route != NO_ROUTE) {
+                return node.route;
+            }
+            if (i == length) {
+                return NO_ROUTE;
+            }
+            node = node.child(customId.charAt(i));
+            if (node == null) {
+                return NO_ROUTE;
+            }
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package ca.edtoaster.partition;
+
+import ca.edtoaster.commands.data.ApplicationCommandInteractionData;
+import org.reactivestreams.Publisher;
+
+/**
+ * Typed entry point into a @Command method, bound once at registration.
+ * Option slots past the arity of the bound method are ignored.
+ */
+@FunctionalInterface
+public interface CommandInvoker {
+    Publisher<?> invoke(Object handler, ApplicationCommandInteractionData data, Object a0, Object a1, Object a2, Object a3);
+}
@@ -0,0 +1,211 @@
+package ca.edtoaster.partition;
+
+import ca.edtoaster.annotations.ButtonListener;
+import ca.edtoaster.annotations.Command;
+import ca.edtoaster.annotations.CommandNamespace;
+import ca.edtoaster.annotations.Option;
+import ca.edtoaster.bot.ToastBot;
+import ca.edtoaster.commands.InteractionHandlerSpec;
+import ca.edtoaster.commands.data.ApplicationCommandInteractionData;
+import ca.edtoaster.commands.data.ButtonInteractionData;
+import discord4j.common.util.Snowflake;
+import discord4j.core.DiscordClient;
+import discord4j.core.object.command.ApplicationCommandOption;
+import discord4j.discordjson.json.ApplicationCommandOptionData;
+import discord4j.discordjson.json.ApplicationCommandRequest;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+/**
+ * Immutable, process wide view of every command and button listener declared by the handler specs.
+ * Built once at startup and shared by all guild partitions, which only keep their own handler instances.
+ */
+@Log4j2
+@Getter
+public class CommandRegistry {
+    private final List<InteractionHandlerSpec> interactionHandlerSpecs;
+    private final List<ApplicationCommandRequest> commandRequests;
+    private final List<RegisteredNamespace> namespaces;
+    private final List<RegisteredButton> buttons;
+    // routes index into buttons
+    private final ButtonRouter buttonRouter;
+
+    private CommandRegistry(List<InteractionHandlerSpec> interactionHandlerSpecs,
+                            List<ApplicationCommandRequest> commandRequests,
+                            List<RegisteredNamespace> namespaces,
+                            List<RegisteredButton> buttons) {
+        this.interactionHandlerSpecs = List.copyOf(interactionHandlerSpecs);
+        this.commandRequests = List.copyOf(commandRequests);
+        this.namespaces = List.copyOf(namespaces);
+        this.buttons = List.copyOf(buttons);
+        this.buttonRouter = ButtonRouter.of(this.buttons.stream().map(RegisteredButton::prefix).collect(Collectors.toList()));
+    }
+
+    public static CommandRegistry build(List<InteractionHandlerSpec> interactionHandlerSpecs) {
+        List<ApplicationCommandRequest> commandRequests = new ArrayList<>();
+        List<RegisteredNamespace> namespaces = new ArrayList<>();
+        List<RegisteredButton> buttons = new ArrayList<>();
+
+        for (int i = 0; i < interactionHandlerSpecs.size(); i++) {
+            setupRequestsForClass(i, interactionHandlerSpecs.get(i), commandRequests, namespaces, buttons);
+        }
+
+        log.info(String.format("Registered %d namespaces and %d button listeners", namespaces.size(), buttons.size()));
+        return new CommandRegistry(interactionHandlerSpecs, commandRequests, namespaces, buttons);
+    }
+
+    /**
+     * Create one handler instance per spec, in spec order
+     */
+    public List<Object> createHandlers(Snowflake namespace, DiscordClient discordClient) {
+        List<Object> handlers = new ArrayList<>(interactionHandlerSpecs.size());
+        for (InteractionHandlerSpec spec : interactionHandlerSpecs) {
+            handlers.add(spec.factory().create(namespace, discordClient));
+        }
+        return handlers;
+    }
+
+    private static ApplicationCommandOptionData configureCommand(final Method method) {
+        log.info("Method has command annotation, validating options");
+        Command annotationInstance = method.getAnnotation(Command.class);
+        String annotationName = annotationInstance.name();
+        String methodName = method.getName();
+        String commandName = annotationName.isEmpty() ? methodName : annotationName;
+        String description = annotationInstance.description();
+
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        Annotation[][] parameterAnnotations = method.getParameterAnnotations();
+        if (parameterTypes.length < 1) {
+            throw new IllegalArgumentException(String.format("Method %s does not have enough parameters", methodName));
+        }
+
+        if (parameterTypes.length - 1 > Invokers.MAX_OPTIONS) {
+            throw new IllegalArgumentException(String.format("Method %s has more than %d options", methodName, Invokers.MAX_OPTIONS));
+        }
+
+        // first type needs to be slash command event
+        Class<?> slashCommandEvent = parameterTypes[0];
+        if (slashCommandEvent != ApplicationCommandInteractionData.class) {
+            throw new IllegalArgumentException(String.format("The first parameter of method %s needs to be type SlashInteraction", methodName));
+        }
+
+        // take the rest of the parameters
+        List<ApplicationCommandOptionData> options = new ArrayList<>();
+
+        int numOptions = parameterTypes.length - 1;
+        for (int i = 1; i < numOptions + 1; i++) {
+            Annotation[] annotations = parameterAnnotations[i];
+            Class<?> parameterType = parameterTypes[i];
+
+            Option optionAnnotation = null;
+            // grab first matching annotation
+            for (Annotation a : annotations) {
+                if (a.annotationType() == Option.class) {
+                    optionAnnotation = (Option) a;
+                    break;
+                }
+            }
+
+            if (Objects.isNull(optionAnnotation)) {
+                throw new IllegalArgumentException(String.format("Option %s does not have an Option annotation", parameterType.toString()));
+            }
+
+            String optionName = optionAnnotation.name();
+            String optionDescription = optionAnnotation.description();
+            boolean required = optionAnnotation.required();
+
+            if (!ToastBot.typesMap.containsKey(parameterType)) {
+                throw new IllegalArgumentException(String.format("Option %s has unsupported type", parameterType.toString()));
+            }
+
+            ApplicationCommandOption.Type type = ToastBot.typesMap.get(parameterType);
+
+            log.info(String.format("-> %s: %s (%s)", optionName, parameterType.toString(), optionDescription));
+            options.add(ApplicationCommandOptionData.builder()
+                    .name(optionName)
+                    .description(optionDescription)
+                    .type(type.getValue())
+                    .required(required)
+                    .build());
+        }
+
+        return ApplicationCommandOptionData.builder()
+                .name(commandName)
+                .description(description)
+                .options(options)
+                .type(ApplicationCommandOption.Type.SUB_COMMAND.getValue())
+                .build();
+    }
+
+    private static RegisteredButton configureButton(final Method method, int handlerIndex) {
+        Class<?>[] parameters = method.getParameterTypes();
+        if (parameters.length != 1 || parameters[0] != ButtonInteractionData.class) {
+            throw new IllegalArgumentException(String.format("Method %s needs to have exactly one parameter ButtonInteraction", method.getName()));
+        }
+
+        ButtonListener annotation = method.getAnnotation(ButtonListener.class);
+
+        return new RegisteredButton(handlerIndex, annotation.prefix(), Invokers.button(method));
+    }
+
+    private static void setupRequestsForClass(int handlerIndex,
+                                              InteractionHandlerSpec spec,
+                                              List<ApplicationCommandRequest> commandRequests,
+                                              List<RegisteredNamespace> namespaces,
+                                              List<RegisteredButton> buttons) {
+        Class<?> handlerClassSupers = spec.clazz();
+
+        Map<String, List<ApplicationCommandOptionData>> optionsMap = new HashMap<>();
+        Map<String, CommandInvoker> handlersMap = new HashMap<>();
+
+        List<ApplicationCommandOptionData> subCommandRequests = new ArrayList<>();
+
+        CommandNamespace annotation = spec.clazz().getAnnotation(CommandNamespace.class);
+        if (Objects.isNull(annotation)) {
+            throw new IllegalArgumentException(String.format("Passed in class %s that was not annotated with @Namespace", spec.clazz()));
+        }
+
+        String commandName = annotation.name();
+        String commandDesc = annotation.description();
+
+        while (handlerClassSupers != Object.class) {
+            log.info("Grabbing methods for class " + handlerClassSupers.toString());
+            for (final Method method : handlerClassSupers.getDeclaredMethods()) {
+                // create a command from this
+                if (method.isAnnotationPresent(Command.class)) {
+                    ApplicationCommandOptionData subCommandData = configureCommand(method);
+                    String subCommandName = subCommandData.name();
+
+                    subCommandRequests.add(subCommandData);
+                    optionsMap.put(subCommandName, List.copyOf(subCommandData.options().get()));
+                    handlersMap.put(subCommandName, Invokers.command(method));
+                } else if (method.isAnnotationPresent(ButtonListener.class)) {
+                    buttons.add(configureButton(method, handlerIndex));
+                }
+            }
+            handlerClassSupers = handlerClassSupers.getSuperclass();
+        }
+
+        namespaces.add(new RegisteredNamespace(handlerIndex, commandName, Map.copyOf(optionsMap), Map.copyOf(handlersMap)));
+
+        // reflection does not guarantee method order, sort so the requests are identical between runs
+        subCommandRequests.sort(Comparator.comparing(ApplicationCommandOptionData::name));
+
+        ApplicationCommandRequest request = ApplicationCommandRequest.builder()
+                .name(commandName)
+                .description(commandDesc)
+                .options(subCommandRequests)
+                .build();
+        commandRequests.add(request);
+    }
+}
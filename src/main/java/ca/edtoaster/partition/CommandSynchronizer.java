@@ -0,0 +1,130 @@
+package ca.edtoaster.partition;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import discord4j.common.JacksonResources;
+import discord4j.core.DiscordClient;
+import discord4j.discordjson.json.ApplicationCommandRequest;
+import discord4j.rest.service.ApplicationService;
+import lombok.extern.log4j.Log4j2;
+import reactor.core.publisher.Mono;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pushes the registry's commands to Discord, skipping scopes whose last pushed definitions are identical.
+ * Bulk overwrites are rate limited, so on restarts without command changes this saves one call per guild.
+ */
+@Log4j2
+public class CommandSynchronizer {
+    private static final String GLOBAL_SCOPE = "global";
+
+    private final DiscordClient discordClient;
+    private final CommandRegistry registry;
+    private final FingerprintStore store;
+    private final boolean globalCommands;
+
+    private final String fingerprint;
+    // guilds are emptied of their own commands when commands are global
+    private final String emptyFingerprint;
+
+    private final AtomicInteger overwritten = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private volatile int expectedGuilds = -1;
+    private final AtomicBoolean summaryLogged = new AtomicBoolean();
+
+    public CommandSynchronizer(DiscordClient discordClient, CommandRegistry registry, FingerprintStore store, boolean globalCommands) {
+        this.discordClient = discordClient;
+        this.registry = registry;
+        this.store = store;
+        this.globalCommands = globalCommands;
+        this.fingerprint = fingerprint(registry.getCommandRequests());
+        this.emptyFingerprint = fingerprint(List.of());
+    }
+
+    /**
+     * Stable hash of the requests exactly as they are serialized to Discord
+     */
+    public static String fingerprint(List<ApplicationCommandRequest> requests) {
+        try {
+            byte[] json = JacksonResources.create().getObjectMapper().writeValueAsBytes(requests);
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(json));
+        } catch (NoSuchAlgorithmException | JsonProcessingException e) {
+            throw new IllegalStateException("Could not fingerprint command requests", e);
+        }
+    }
+
+    /**
+     * Number of guilds that will be synced during startup, used to log a summary once they are all done
+     */
+    public void expectGuilds(int expectedGuilds) {
+        // only the first ready event describes startup, later ones come from reconnects
+        if (this.expectedGuilds < 0) {
+            this.expectedGuilds = expectedGuilds;
+            logSummaryIfDone();
+        }
+    }
+
+    public Mono<Void> syncGlobal() {
+        if (!globalCommands) {
+            return Mono.empty();
+        }
+
+        ApplicationService service = discordClient.getApplicationService();
+        return discordClient.getApplicationId()
+                .flatMap(appID -> {
+                    String key = appID + "/" + GLOBAL_SCOPE;
+                    if (fingerprint.equals(store.get(key))) {
+                        log.info("Global command definitions unchanged, skipped overwrite");
+                        return Mono.<Void>empty();
+                    }
+
+                    return service.bulkOverwriteGlobalApplicationCommand(appID, registry.getCommandRequests())
+                            .doOnNext(a -> log.info(String.format("[Global] Created command %s", a.name())))
+                            .then(Mono.<Void>fromRunnable(() -> store.put(key, fingerprint)));
+                })
+                .then();
+    }
+
+    public Mono<Void> syncGuild(Partition partition) {
+        long guildID = partition.getNamespace().asLong();
+        List<ApplicationCommandRequest> requests = globalCommands ? List.of() : registry.getCommandRequests();
+        String expected = globalCommands ? emptyFingerprint : fingerprint;
+
+        return discordClient.getApplicationId()
+                .flatMap(appID -> {
+                    String key = appID + "/" + guildID;
+                    String previous = store.get(key);
+                    // a guild that never had commands pushed needs nothing when commands are global
+                    if (expected.equals(previous) || (globalCommands && previous == null)) {
+                        int n = skipped.incrementAndGet();
+                        log.info(String.format("[Guild %s] Command definitions unchanged, skipped overwrite (%d skipped so far)", guildID, n));
+                        return Mono.<Void>empty();
+                    }
+
+                    return partition.refreshGuild(requests)
+                            .then(Mono.<Void>fromRunnable(() -> {
+                                store.put(key, expected);
+                                overwritten.incrementAndGet();
+                            }));
+                })
+                .doOnError(e -> failed.incrementAndGet())
+                .doFinally(s -> logSummaryIfDone())
+                .then();
+    }
+
+    private void logSummaryIfDone() {
+        int expected = expectedGuilds;
+        int done = overwritten.get() + skipped.get() + failed.get();
+        // guilds joined during startup push done past expected
+        if (expected >= 0 && done >= expected && summaryLogged.compareAndSet(false, true)) {
+            log.info(String.format("Command sync finished for %d guilds: %d overwritten, %d skipped, %d failed",
+                    done, overwritten.get(), skipped.get(), failed.get()));
+        }
+    }
+}
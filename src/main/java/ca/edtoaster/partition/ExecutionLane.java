@@ -0,0 +1,227 @@
+package ca.edtoaster.partition;
+
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+import org.reactivestreams.Publisher;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Bounded mailbox whose tasks run one at a time, in submission order. Each guild owns its own lanes,
+ * so work is serial within a guild and parallel across guilds without any global lock.
+ */
+@Log4j2
+public class ExecutionLane {
+    @Getter
+    private final String name;
+    @Getter
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+    private final Duration taskTimeout;
+
+    // guarded by itself
+    private final Deque<Task> mailbox;
+    private final AtomicInteger wip = new AtomicInteger();
+    private volatile boolean active;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile int depth;
+    private volatile int maxDepth;
+    private volatile long lastWaitNanos;
+    private volatile long maxWaitNanos;
+    private volatile long lastRunNanos;
+    private volatile long maxRunNanos;
+
+    private static final class Task {
+        private final Supplier<? extends Publisher<?>> work;
+        private final Supplier<? extends Publisher<?>> onRejected;
+        private final Sinks.Empty<Void> done = Sinks.empty();
+        private final long enqueuedAt = System.nanoTime();
+
+        private Task(Supplier<? extends Publisher<?>> work, Supplier<? extends Publisher<?>> onRejected) {
+            this.work = work;
+            this.onRejected = onRejected;
+        }
+    }
+
+    public ExecutionLane(String name, int capacity, OverflowPolicy overflowPolicy, Duration taskTimeout) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException(String.format("Lane %s needs a capacity of at least 1", name));
+        }
+        this.name = name;
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+        this.taskTimeout = taskTimeout;
+        this.mailbox = new ArrayDeque<>(capacity);
+    }
+
+    /**
+     * Queue work on this lane. The returned mono completes once the work has run, or once
+     * onRejected has run if the mailbox overflowed.
+     */
+    public Mono<Void> submit(Supplier<? extends Publisher<?>> work, Supplier<? extends Publisher<?>> onRejected) {
+        return Mono.defer(() -> {
+            Task task = new Task(work, onRejected);
+            enqueue(task);
+            return task.done.asMono();
+        });
+    }
+
+    private void enqueue(Task task) {
+        submitted.incrementAndGet();
+
+        Task turnedAway = null;
+        synchronized (mailbox) {
+            if (mailbox.size() >= capacity) {
+                turnedAway = overflowPolicy == OverflowPolicy.DROP_OLDEST ? mailbox.poll() : task;
+            }
+            if (turnedAway != task) {
+                mailbox.offer(task);
+            }
+            updateDepth(mailbox.size());
+        }
+
+        if (turnedAway != null) {
+            reject(turnedAway);
+        }
+        drain();
+    }
+
+    private void updateDepth(int size) {
+        depth = size;
+        if (size > maxDepth) {
+            maxDepth = size;
+        }
+    }
+
+    private void reject(Task task) {
+        rejected.incrementAndGet();
+        log.warn(String.format("[Lane %s] Mailbox full (%d tasks), turning a task away", name, capacity));
+        subscribe(task.onRejected, () -> task.done.tryEmitEmpty(), e -> task.done.tryEmitError(e));
+    }
+
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+
+        // a task that completes synchronously re-enters drain, which only bumps wip, so this loop picks the next one up
+        int missed = 1;
+        do {
+            if (!active) {
+                Task task;
+                synchronized (mailbox) {
+                    task = mailbox.poll();
+                    updateDepth(mailbox.size());
+                }
+                if (task != null) {
+                    active = true;
+                    run(task);
+                }
+            }
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void run(Task task) {
+        long started = System.nanoTime();
+        long waited = started - task.enqueuedAt;
+        lastWaitNanos = waited;
+        if (waited > maxWaitNanos) {
+            maxWaitNanos = waited;
+        }
+
+        subscribe(task.work,
+                () -> finish(task, started, null),
+                e -> finish(task, started, e));
+    }
+
+    private void subscribe(Supplier<? extends Publisher<?>> work, Runnable onComplete, Consumer<Throwable> onError) {
+        Publisher<?> publisher;
+        try {
+            publisher = work.get();
+        } catch (Throwable t) {
+            publisher = Mono.error(t);
+        }
+
+        Flux.from(publisher)
+                .then()
+                .timeout(taskTimeout)
+                .subscribe(null, onError, onComplete);
+    }
+
+    private void finish(Task task, long started, Throwable error) {
+        long ran = System.nanoTime() - started;
+        lastRunNanos = ran;
+        if (ran > maxRunNanos) {
+            maxRunNanos = ran;
+        }
+
+        if (error == null) {
+            completed.incrementAndGet();
+            task.done.tryEmitEmpty();
+        } else {
+            failed.incrementAndGet();
+            task.done.tryEmitError(error);
+        }
+
+        active = false;
+        drain();
+    }
+
+    /*
+    Gauges
+     */
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public long getSubmitted() {
+        return submitted.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public Duration getLastWait() {
+        return Duration.ofNanos(lastWaitNanos);
+    }
+
+    public Duration getMaxWait() {
+        return Duration.ofNanos(maxWaitNanos);
+    }
+
+    public Duration getLastRun() {
+        return Duration.ofNanos(lastRunNanos);
+    }
+
+    public Duration getMaxRun() {
+        return Duration.ofNanos(maxRunNanos);
+    }
+}
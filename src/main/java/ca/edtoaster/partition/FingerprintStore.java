@@ -0,0 +1,83 @@
+package ca.edtoaster.partition;
+
+import lombok.extern.log4j.Log4j2;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Small properties file that remembers the last command fingerprint pushed to each scope
+ */
+@Log4j2
+public class FingerprintStore {
+    private static final String FILE_NAME = "command-fingerprints.properties";
+    private static final Duration SAVE_DELAY = Duration.ofSeconds(1);
+
+    private final Path file;
+    private final Properties fingerprints;
+    private final AtomicBoolean savePending = new AtomicBoolean();
+
+    public FingerprintStore(Path dataDirectory) {
+        this.file = dataDirectory.resolve(FILE_NAME);
+        this.fingerprints = new Properties();
+
+        if (Files.exists(file)) {
+            try (InputStream in = Files.newInputStream(file)) {
+                fingerprints.load(in);
+            } catch (IOException e) {
+                // worst case every guild gets overwritten once more
+                log.error("Could not read command fingerprints from " + file, e);
+                fingerprints.clear();
+            }
+        }
+    }
+
+    @Nullable
+    public synchronized String get(String key) {
+        return fingerprints.getProperty(key);
+    }
+
+    /**
+     * Remember the fingerprint pushed to a scope, the file is rewritten shortly after off the caller's thread
+     */
+    public synchronized void put(String key, String fingerprint) {
+        fingerprints.setProperty(key, fingerprint);
+        // the startup sync puts one guild after another, they all land in one write
+        if (savePending.compareAndSet(false, true)) {
+            Mono.delay(SAVE_DELAY, Schedulers.boundedElastic()).subscribe(t -> save());
+        }
+    }
+
+    // synchronized on the file so a save scheduled mid write waits its turn for the tmp file
+    private void save() {
+        synchronized (file) {
+            // fingerprints that land while writing schedule another save
+            savePending.set(false);
+            Properties snapshot;
+            synchronized (this) {
+                snapshot = (Properties) fingerprints.clone();
+            }
+
+            try {
+                Files.createDirectories(file.getParent());
+                Path tmp = file.resolveSibling(FILE_NAME + ".tmp");
+                try (OutputStream out = Files.newOutputStream(tmp)) {
+                    snapshot.store(out, "Last command definitions pushed to Discord");
+                }
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                log.error("Could not write command fingerprints to " + file, e);
+            }
+        }
+    }
+}
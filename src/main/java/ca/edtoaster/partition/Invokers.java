@@ -0,0 +1,107 @@
+package ca.edtoaster.partition;
+
+import ca.edtoaster.commands.data.ApplicationCommandInteractionData;
+import org.reactivestreams.Publisher;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+/**
+ * Binds annotated handler methods to generated invokers through LambdaMetafactory, so that
+ * dispatching an event is a plain interface call instead of Method.invoke.
+ */
+final class Invokers {
+    static final int MAX_OPTIONS = 4;
+
+    interface Arity0 {
+        Publisher<?> invoke(Object handler, ApplicationCommandInteractionData data);
+    }
+
+    interface Arity1 {
+        Publisher<?> invoke(Object handler, ApplicationCommandInteractionData data, Object a0);
+    }
+
+    interface Arity2 {
+        Publisher<?> invoke(Object handler, ApplicationCommandInteractionData data, Object a0, Object a1);
+    }
+
+    interface Arity3 {
+        Publisher<?> invoke(Object handler, ApplicationCommandInteractionData data, Object a0, Object a1, Object a2);
+    }
+
+    interface Arity4 {
+        Publisher<?> invoke(Object handler, ApplicationCommandInteractionData data, Object a0, Object a1, Object a2, Object a3);
+    }
+
+    private Invokers() {
+    }
+
+    static CommandInvoker command(final Method method) {
+        int numOptions = method.getParameterCount() - 1;
+        switch (numOptions) {
+            case 0: {
+                Arity0 f = bind(method, Arity0.class);
+                return (h, d, a0, a1, a2, a3) -> f.invoke(h, d);
+            }
+            case 1: {
+                Arity1 f = bind(method, Arity1.class);
+                return (h, d, a0, a1, a2, a3) -> f.invoke(h, d, a0);
+            }
+            case 2: {
+                Arity2 f = bind(method, Arity2.class);
+                return (h, d, a0, a1, a2, a3) -> f.invoke(h, d, a0, a1);
+            }
+            case 3: {
+                Arity3 f = bind(method, Arity3.class);
+                return (h, d, a0, a1, a2, a3) -> f.invoke(h, d, a0, a1, a2);
+            }
+            case 4: {
+                Arity4 f = bind(method, Arity4.class);
+                return f::invoke;
+            }
+            default:
+                throw new IllegalArgumentException(String.format("Method %s has more than %d options", method.getName(), MAX_OPTIONS));
+        }
+    }
+
+    static ButtonInvoker button(final Method method) {
+        return bind(method, ButtonInvoker.class);
+    }
+
+    private static <T> T bind(final Method method, Class<T> invokerType) {
+        String methodName = method.getName();
+        int modifiers = method.getModifiers();
+        if (!Modifier.isPublic(modifiers) || Modifier.isStatic(modifiers)
+                || !Modifier.isPublic(method.getDeclaringClass().getModifiers())) {
+            throw new IllegalArgumentException(String.format("Method %s needs to be a public instance method of a public class", methodName));
+        }
+
+        if (!Publisher.class.isAssignableFrom(method.getReturnType())) {
+            throw new IllegalArgumentException(String.format("Method %s needs to return a Publisher", methodName));
+        }
+
+        // every invoker type declares exactly one method named "invoke"
+        Method sam = invokerType.getMethods()[0];
+        MethodType samType = MethodType.methodType(sam.getReturnType(), sam.getParameterTypes());
+
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            MethodHandle target = lookup.unreflect(method);
+            CallSite site = LambdaMetafactory.metafactory(
+                    lookup,
+                    sam.getName(),
+                    MethodType.methodType(invokerType),
+                    samType,
+                    target,
+                    target.type());
+            return invokerType.cast(site.getTarget().invoke());
+        } catch (Throwable t) {
+            throw new IllegalArgumentException(String.format("Could not bind method %s", methodName), t);
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package ca.edtoaster.partition;
+
+import java.time.Duration;
+
+/**
+ * Sizing for the per guild execution lanes. Message handlers may wait on slow backends,
+ * so they get their own lane and timeout and never hold up interactions.
+ */
+public record LaneSettings(int capacity,
+                           OverflowPolicy overflowPolicy,
+                           Duration interactionTimeout,
+                           Duration messageTimeout) {
+    public static final LaneSettings DEFAULT =
+            new LaneSettings(64, OverflowPolicy.REJECT_NEWEST, Duration.ofSeconds(30), Duration.ofMinutes(3));
+}
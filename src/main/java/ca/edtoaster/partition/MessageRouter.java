@@ -0,0 +1,142 @@
+package ca.edtoaster.partition;
+
+import ca.edtoaster.commands.MessageSubscription;
+import org.jctools.maps.NonBlockingHashMapLong;
+
+import java.util.Arrays;
+
+/**
+ * Index from channel to the message handlers subscribed to it, rebuilt whenever a subscription changes.
+ * Lookups are primitive keyed and allocation free, so messages nobody subscribed to cost almost nothing.
+ */
+public class MessageRouter {
+    public static final int[] NO_HANDLERS = new int[0];
+    // returned when the channel might be a thread whose parent has not been looked up yet
+    public static final int[] UNKNOWN_PARENT = new int[0];
+
+    private static final long NOT_A_THREAD = 0;
+    // channels remembered per generation, see threadParents
+    private static final int THREAD_PARENTS_PER_GENERATION = 1024;
+
+    private record Index(int[] anyChannel,
+                         NonBlockingHashMapLong<int[]> byChannel,
+                         NonBlockingHashMapLong<int[]> byThreadParent) {
+    }
+
+    private final MessageSubscription[] subscriptions;
+    private volatile Index index;
+    // channel id to parent id, NOT_A_THREAD for channels that are not threads. Kept in two generations so
+    // threads that went quiet are forgotten: once the current one is full it becomes the previous one, and
+    // channels seen again are carried over
+    private volatile NonBlockingHashMapLong<Long> threadParents = new NonBlockingHashMapLong<>();
+    private volatile NonBlockingHashMapLong<Long> previousThreadParents = new NonBlockingHashMapLong<>();
+
+    public MessageRouter(int numHandlers) {
+        this.subscriptions = new MessageSubscription[numHandlers];
+        Arrays.fill(subscriptions, MessageSubscription.NONE);
+        this.index = build(subscriptions);
+    }
+
+    public MessageSubscription getSubscription(int handler) {
+        return subscriptions[handler];
+    }
+
+    public synchronized void update(int handler, MessageSubscription subscription) {
+        subscriptions[handler] = subscription;
+        this.index = build(subscriptions);
+    }
+
+    private static Index build(MessageSubscription[] subscriptions) {
+        int[] anyChannel = NO_HANDLERS;
+        NonBlockingHashMapLong<int[]> byChannel = new NonBlockingHashMapLong<>();
+        NonBlockingHashMapLong<int[]> byThreadParent = new NonBlockingHashMapLong<>();
+
+        for (int i = 0; i < subscriptions.length; i++) {
+            MessageSubscription subscription = subscriptions[i];
+            if (subscription.anyChannel()) {
+                anyChannel = append(anyChannel, i);
+            }
+            for (long channelId : subscription.channelIds()) {
+                byChannel.put(channelId, append(byChannel.getOrDefault(channelId, NO_HANDLERS), i));
+            }
+            for (long parentId : subscription.threadParentIds()) {
+                byThreadParent.put(parentId, append(byThreadParent.getOrDefault(parentId, NO_HANDLERS), i));
+            }
+        }
+
+        return new Index(anyChannel, byChannel, byThreadParent);
+    }
+
+    private static int[] append(int[] handlers, int handler) {
+        int[] result = Arrays.copyOf(handlers, handlers.length + 1);
+        result[handlers.length] = handler;
+        return result;
+    }
+
+    /**
+     * Handlers whose channel subscription covers this channel. Returns UNKNOWN_PARENT when some handler
+     * follows threads and the channel's parent has to be looked up with rememberParent first.
+     */
+    public int[] route(long channelId) {
+        Index current = index;
+
+        int[] direct = current.byChannel().get(channelId);
+        if (direct != null) {
+            return merge(current.anyChannel(), direct);
+        }
+
+        if (!current.byThreadParent().isEmpty()) {
+            Long parentId = lookupParent(channelId);
+            if (parentId == null) {
+                return UNKNOWN_PARENT;
+            }
+            if (parentId != NOT_A_THREAD) {
+                int[] viaParent = current.byThreadParent().get(parentId.longValue());
+                if (viaParent != null) {
+                    return merge(current.anyChannel(), viaParent);
+                }
+            }
+        }
+
+        return current.anyChannel();
+    }
+
+    public void rememberParent(long channelId, long parentId) {
+        remember(channelId, Long.valueOf(parentId));
+    }
+
+    public void rememberNotAThread(long channelId) {
+        remember(channelId, Long.valueOf(NOT_A_THREAD));
+    }
+
+    private Long lookupParent(long channelId) {
+        Long parentId = threadParents.get(channelId);
+        if (parentId == null) {
+            parentId = previousThreadParents.get(channelId);
+            if (parentId != null) remember(channelId, parentId);
+        }
+        return parentId;
+    }
+
+    private void remember(long channelId, Long parentId) {
+        NonBlockingHashMapLong<Long> current = threadParents;
+        current.put(channelId, parentId);
+        if (current.size() >= THREAD_PARENTS_PER_GENERATION) {
+            nextGeneration(current);
+        }
+    }
+
+    private synchronized void nextGeneration(NonBlockingHashMapLong<Long> full) {
+        // another thread may have moved on already
+        if (threadParents != full) return;
+        previousThreadParents = full;
+        threadParents = new NonBlockingHashMapLong<>();
+    }
+
+    private static int[] merge(int[] a, int[] b) {
+        if (a.length == 0) return b;
+        int[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+}
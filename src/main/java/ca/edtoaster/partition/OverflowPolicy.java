@@ -0,0 +1,11 @@
+package ca.edtoaster.partition;
+
+/**
+ * What an execution lane does with a new task when its mailbox is full
+ */
+public enum OverflowPolicy {
+    // turn the new task away
+    REJECT_NEWEST,
+    // make room by turning away the task that has waited the longest
+    DROP_OLDEST
+}
@@ -1,241 +1,301 @@
 package ca.edtoaster.partition;
 
-import ca.edtoaster.annotations.ButtonListener;
-import ca.edtoaster.annotations.Command;
-import ca.edtoaster.annotations.CommandNamespace;
-import ca.edtoaster.annotations.Option;
-import ca.edtoaster.bot.ToastBot;
-import ca.edtoaster.commands.InteractionHandlerSpec;
+import ca.edtoaster.commands.GuildReadyHandler;
 import ca.edtoaster.commands.MessageHandler;
 import ca.edtoaster.commands.data.ApplicationCommandInteractionData;
 import ca.edtoaster.commands.data.ButtonInteractionData;
 import ca.edtoaster.commands.data.MessageCreateData;
-import ca.edtoaster.commands.data.Whatever;
+import ca.edtoaster.metrics.BotMetrics;
 import discord4j.common.util.Snowflake;
 import discord4j.core.DiscordClient;
 import discord4j.core.event.domain.interaction.ApplicationCommandInteractionEvent;
 import discord4j.core.event.domain.interaction.ButtonInteractionEvent;
+import discord4j.core.event.domain.interaction.DeferrableInteractionEvent;
 import discord4j.core.event.domain.message.MessageCreateEvent;
-import discord4j.core.object.command.ApplicationCommandOption;
+import discord4j.core.object.command.ApplicationCommandInteraction;
+import discord4j.core.object.command.ApplicationCommandInteractionOption;
+import discord4j.core.object.entity.Guild;
+import discord4j.core.object.entity.Member;
+import discord4j.core.object.entity.Message;
 import discord4j.core.object.entity.User;
-import discord4j.discordjson.json.ApplicationCommandOptionData;
+import discord4j.core.object.entity.channel.ThreadChannel;
+import discord4j.discordjson.Id;
 import discord4j.discordjson.json.ApplicationCommandRequest;
 import discord4j.rest.service.ApplicationService;
+import io.micrometer.core.instrument.Meter;
 import lombok.Getter;
-import lombok.RequiredArgsConstructor;
 import lombok.extern.log4j.Log4j2;
 import org.reactivestreams.Publisher;
+import reactor.core.Disposable;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
-import java.lang.annotation.Annotation;
-import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
-import java.util.stream.Collectors;
+import java.util.Optional;
+import java.util.function.ToDoubleFunction;
+import java.util.function.Function;
 
 @Log4j2
-@RequiredArgsConstructor
-public class Partition {
+public class Partition implements Disposable {
     @Getter
     private final Snowflake namespace;
     private final User botUser;
     private final DiscordClient discordClient;
-    private final List<InteractionHandlerSpec> interactionHandlerSpecs;
-
-    private List<ApplicationCommandRequest> commandRequests;
-    private Map<String, PartitionedCommandHandler> commandHandlers;
-    private List<PartitionedButtonHandler> buttonHandlers;
-    private List<MessageHandler> messageHandlers;
-
-    private ApplicationCommandOptionData configureCommand(final Method method) {
-        log.info("Method has command annotation, validating options");
-        Command annotationInstance = method.getAnnotation(Command.class);
-        String annotationName = annotationInstance.name();
-        String methodName = method.getName();
-        String commandName = annotationName.isEmpty() ? methodName : annotationName;
-        String description = annotationInstance.description();
-
-        Class<?>[] parameterTypes = method.getParameterTypes();
-        Annotation[][] parameterAnnotations = method.getParameterAnnotations();
-        if (parameterTypes.length < 1) {
-            throw new IllegalArgumentException(String.format("Method %s does not have enough parameters", methodName));
-        }
+    private final CommandRegistry registry;
+
+    // interactions and messages run serially per guild, on separate lanes so slow chat turns never delay a click
+    @Getter
+    private final ExecutionLane interactionLane;
+    @Getter
+    private final ExecutionLane messageLane;
+
+    private final List<Object> handlerInstances;
+    private final Map<String, PartitionedCommandHandler> commandHandlers;
+    // indexed by button route
+    private final PartitionedButtonHandler[] buttonHandlers;
+    // indexed by message route
+    private final MessageHandler[] messageHandlers;
+    private final MessageRouter messageRouter;
+    private final List<Disposable> subscriptionWatchers;
+    private final ResolvedEntityCache entityCache = new ResolvedEntityCache();
+    private final List<Meter> laneMeters = new ArrayList<>();
+
+    public Partition(Snowflake namespace,
+                     User botUser,
+                     DiscordClient discordClient,
+                     CommandRegistry registry,
+                     LaneSettings laneSettings) {
+        this.namespace = namespace;
+        this.botUser = botUser;
+        this.discordClient = discordClient;
+        this.registry = registry;
+        this.interactionLane = new ExecutionLane(namespace.asString() + "/interactions",
+                laneSettings.capacity(), laneSettings.overflowPolicy(), laneSettings.interactionTimeout());
+        this.messageLane = new ExecutionLane(namespace.asString() + "/messages",
+                laneSettings.capacity(), laneSettings.overflowPolicy(), laneSettings.messageTimeout());
+        registerLaneMetrics(interactionLane, "interactions");
+        registerLaneMetrics(messageLane, "messages");
+
+        // handlers are ready before the partition is published, so events can be routed to it immediately
+        this.handlerInstances = registry.createHandlers(namespace, discordClient);
+
+        List<RegisteredButton> buttons = registry.getButtons();
 
-        // first type needs to be slash command event
-        Class<?> slashCommandEvent = parameterTypes[0];
-        if (slashCommandEvent != ApplicationCommandInteractionData.class) {
-            throw new IllegalArgumentException(String.format("The first parameter of method %s needs to be type SlashInteraction", methodName));
+        commandHandlers = new HashMap<>();
+        buttonHandlers = new PartitionedButtonHandler[buttons.size()];
+        messageHandlers = handlerInstances.stream()
+                .filter(MessageHandler.class::isInstance)
+                .map(MessageHandler.class::cast)
+                .toArray(MessageHandler[]::new);
+        messageRouter = new MessageRouter(messageHandlers.length);
+        subscriptionWatchers = new ArrayList<>();
+
+        for (int i = 0; i < messageHandlers.length; i++) {
+            int route = i;
+            subscriptionWatchers.add(messageHandlers[i].getSubscriptions()
+                    .subscribe(subscription -> messageRouter.update(route, subscription)));
         }
 
-        // take the rest of the parameters
-        List<ApplicationCommandOptionData> options = new ArrayList<>();
-
-        int numOptions = parameterTypes.length - 1;
-        for (int i = 1; i < numOptions + 1; i++) {
-            Annotation[] annotations = parameterAnnotations[i];
-            Class<?> parameterType = parameterTypes[i];
-
-            Option optionAnnotation = null;
-            // grab first matching annotation
-            for (Annotation a : annotations) {
-                if (a.annotationType() == Option.class) {
-                    optionAnnotation = (Option) a;
-                    break;
-                }
-            }
+        for (RegisteredNamespace n : registry.getNamespaces()) {
+            this.commandHandlers.put(n.name(),
+                    new PartitionedCommandHandler(n.name(),
+                            n.optionsMap(),
+                            n.invokers(),
+                            handlerInstances.get(n.handlerIndex()),
+                            entityCache));
+        }
 
-            if (Objects.isNull(optionAnnotation)) {
-                throw new IllegalArgumentException(String.format("Option %s does not have an Option annotation", parameterType.toString()));
-            }
+        for (int i = 0; i < buttons.size(); i++) {
+            RegisteredButton b = buttons.get(i);
+            this.buttonHandlers[i] = new PartitionedButtonHandler(b.prefix(), b.invoker(), handlerInstances.get(b.handlerIndex()));
+        }
+    }
 
-            String optionName = optionAnnotation.name();
-            String optionDescription = optionAnnotation.description();
-            boolean required = optionAnnotation.required();
+    private void registerLaneMetrics(ExecutionLane lane, String kind) {
+        String[] tags = {"guild", namespace.asString(), "lane", kind};
+        laneMeters.addAll(BotMetrics.registerGauges(lane, "toastbot.lane", Map.<String, ToDoubleFunction<ExecutionLane>>of(
+                "depth", ExecutionLane::getDepth,
+                "max.depth", ExecutionLane::getMaxDepth,
+                "wait.last", l -> l.getLastWait().toNanos() / 1e9,
+                "wait.max", l -> l.getMaxWait().toNanos() / 1e9,
+                "run.max", l -> l.getMaxRun().toNanos() / 1e9), tags));
+        laneMeters.add(BotMetrics.registerCounter(lane, "toastbot.lane.submitted", ExecutionLane::getSubmitted, tags));
+        laneMeters.add(BotMetrics.registerCounter(lane, "toastbot.lane.rejected", ExecutionLane::getRejected, tags));
+        laneMeters.add(BotMetrics.registerCounter(lane, "toastbot.lane.failed", ExecutionLane::getFailed, tags));
+    }
 
-            if (!ToastBot.typesMap.containsKey(parameterType)) {
-                throw new IllegalArgumentException(String.format("Option %s has unsupported type", parameterType.toString()));
+    @Override
+    public void dispose() {
+        BotMetrics.unregister(laneMeters);
+        subscriptionWatchers.forEach(Disposable::dispose);
+        for (Object handlerInstance : handlerInstances) {
+            if (handlerInstance instanceof Disposable) {
+                ((Disposable) handlerInstance).dispose();
             }
-
-            ApplicationCommandOption.Type type = ToastBot.typesMap.get(parameterType);
-
-            log.info(String.format("-> %s: %s (%s)", optionName, parameterType.toString(), optionDescription));
-            options.add(ApplicationCommandOptionData.builder()
-                    .name(optionName)
-                    .description(optionDescription)
-                    .type(type.getValue())
-                    .required(required)
-                    .build());
         }
-
-        return ApplicationCommandOptionData.builder()
-                .name(commandName)
-                .description(description)
-                .options(options)
-                .type(ApplicationCommandOption.Type.SUB_COMMAND.getValue())
-                .build();
     }
 
-    private void configureButton(final Method method, Object handlerInstance) {
-        Class<?>[] parameters = method.getParameterTypes();
-        if (parameters.length != 1 || parameters[0] != ButtonInteractionData.class) {
-            throw new IllegalArgumentException(String.format("Method %s needs to have exactly one parameter ButtonInteraction", method.getName()));
-        }
+    /**
+     * Overwrite this guild's commands with the given requests
+     */
+    public Mono<Void> refreshGuild(List<ApplicationCommandRequest> commandRequests) {
+        ApplicationService service = discordClient.getApplicationService();
 
-        ButtonListener annotation = method.getAnnotation(ButtonListener.class);
+        long guildID = namespace.asLong();
 
-        buttonHandlers.add(new PartitionedButtonHandler(annotation.prefix(), method, handlerInstance));
+        return discordClient.getApplicationId()
+                .flatMapMany(appID -> service.bulkOverwriteGuildApplicationCommand(appID, guildID, commandRequests))
+                .doOnNext(a -> log.info(String.format("[Guild %s] Created command %s", guildID, a.name())))
+                .then();
     }
 
-    private void setupRequestsForClass(InteractionHandlerSpec spec) {
-        Class<?> handlerClassSupers = spec.clazz();
-        Object handlerInstance = spec.factory().create(namespace, discordClient);
-
-        if (handlerInstance instanceof MessageHandler) {
-            this.messageHandlers.add((MessageHandler) handlerInstance);
-        }
+    /**
+     * Let handlers pick up where they left off. Runs on the interaction lane, so commands wait for it.
+     */
+    public Mono<Void> handleGuildReady(Guild guild) {
+        return interactionLane.submit(() -> Flux.fromIterable(handlerInstances)
+                .ofType(GuildReadyHandler.class)
+                .flatMap(handler -> handler.onGuildReady(guild)
+                        .onErrorResume(e -> {
+                            log.error(String.format("[Guild %s] %s failed to get ready",
+                                    namespace.asString(), handler.getClass().getSimpleName()), e);
+                            return Mono.empty();
+                        }))
+                .then(), Mono::empty);
+    }
 
-        Map<String, List<ApplicationCommandOptionData>> optionsMap = new HashMap<>();
-        Map<String, Method> handlersMap = new HashMap<>();
+    public Publisher<?> handleButton(ButtonInteractionEvent event) {
+        return interactionLane.submit(() -> dispatchButton(event), () -> rejectInteraction(event));
+    }
 
-        List<ApplicationCommandOptionData> subCommandRequests = new ArrayList<>();
+    public Publisher<?> handleSlash(ApplicationCommandInteractionEvent event) {
+        return interactionLane.submit(() -> dispatchSlash(event), () -> rejectInteraction(event));
+    }
 
-        CommandNamespace annotation = spec.clazz().getAnnotation(CommandNamespace.class);
-        if (Objects.isNull(annotation)) {
-            throw new IllegalArgumentException(String.format("Passed in class %s that was not annotated with @Namespace", spec.clazz()));
+    public Publisher<?> handleMessageCreate(MessageCreateEvent event) {
+        // most messages are not for us, so they are filtered before anything is queued or allocated
+        long channelId = event.getMessage().getChannelId().asLong();
+        int[] routes = messageRouter.route(channelId);
+        if (routes == MessageRouter.UNKNOWN_PARENT) {
+            return resolveThreadParent(event.getMessage())
+                    .flatMapMany(m -> handleMessageCreate(event));
+        }
+        if (routes.length == 0) {
+            return Mono.empty();
         }
 
-        String commandName = annotation.name();
-        String commandDesc = annotation.description();
-
-        while (handlerClassSupers != Object.class) {
-            log.info("Grabbing methods for class " + handlerClassSupers.toString());
-            for (final Method method : handlerClassSupers.getDeclaredMethods()) {
-                // create a command from this
-                if (method.isAnnotationPresent(Command.class)) {
-                    ApplicationCommandOptionData subCommandData = configureCommand(method);
-                    String subCommandName = subCommandData.name();
-
-                    subCommandRequests.add(subCommandData);
-                    optionsMap.put(subCommandName, subCommandData.options().get());
-                    handlersMap.put(subCommandName, method);
-                } else if (method.isAnnotationPresent(ButtonListener.class)) {
-                    configureButton(method, handlerInstance);
-                }
-            }
-            handlerClassSupers = handlerClassSupers.getSuperclass();
+        // the bot's own messages and other unwanted authors or content never take a mailbox slot
+        var who = event.getMember();
+        if (who.isEmpty()) {
+            return Mono.empty();
+        }
+        int[] accepted = acceptedRoutes(routes, who.get(), event.getMessage().getContent());
+        if (accepted.length == 0) {
+            return Mono.empty();
         }
 
-        PartitionedCommandHandler handler =
-                new PartitionedCommandHandler(commandName,
-                        optionsMap,
-                        handlersMap,
-                        handlerInstance);
-
-        ApplicationCommandRequest request = ApplicationCommandRequest.builder()
-                .name(commandName)
-                .description(commandDesc)
-                .options(subCommandRequests)
-                .build();
-        this.commandRequests.add(request);
-        this.commandHandlers.put(commandName, handler);
+        // dropping a message is silent, there is nothing to reply to
+        return messageLane.submit(() -> dispatchMessageCreate(event, who.get(), accepted), Mono::empty);
     }
 
-    public Mono<Void> refreshGuild() {
-        commandRequests = new ArrayList<>();
-        commandHandlers = new HashMap<>();
-        buttonHandlers = new ArrayList<>();
-        messageHandlers = new ArrayList<>();
-
-        this.interactionHandlerSpecs.forEach(this::setupRequestsForClass);
+    private int[] acceptedRoutes(int[] routes, Member who, String content) {
+        boolean authorIsBot = who.isBot();
+        boolean authorIsSelf = who.getId().equals(botUser.getId());
 
-        ApplicationService service = discordClient.getApplicationService();
+        int count = 0;
+        for (int route : routes) {
+            if (messageRouter.getSubscription(route).accepts(authorIsBot, authorIsSelf, content)) count++;
+        }
+        // usually every route or none accepts, so nothing is copied
+        if (count == routes.length) return routes;
+        if (count == 0) return MessageRouter.NO_HANDLERS;
+
+        int[] accepted = new int[count];
+        int i = 0;
+        for (int route : routes) {
+            if (messageRouter.getSubscription(route).accepts(authorIsBot, authorIsSelf, content)) accepted[i++] = route;
+        }
+        return accepted;
+    }
 
-        long guildID = namespace.asLong();
+    /**
+     * Look up whether the message's channel is a thread, once per channel. The gateway store usually has it,
+     * so this rarely needs a REST call.
+     */
+    private Mono<Message> resolveThreadParent(Message message) {
+        long channelId = message.getChannelId().asLong();
+        return message.getChannel()
+                .map(channel -> channel instanceof ThreadChannel
+                        ? channel.getData().parentId().toOptional().flatMap(Function.identity()).map(Id::asLong)
+                        : Optional.<Long>empty())
+                .defaultIfEmpty(Optional.empty())
+                .doOnNext(parentId -> {
+                    if (parentId.isPresent()) {
+                        messageRouter.rememberParent(channelId, parentId.get());
+                    } else {
+                        messageRouter.rememberNotAThread(channelId);
+                    }
+                })
+                .thenReturn(message);
+    }
 
-        return discordClient.getApplicationId()
-                .flatMapMany(appID -> service.bulkOverwriteGuildApplicationCommand(appID, guildID, commandRequests))
-                .doOnNext(a -> log.info(String.format("[Guild %s] Created command %s", guildID, a.name())))
-                .then();
+    private Publisher<?> rejectInteraction(DeferrableInteractionEvent event) {
+        return event.reply("This server is sending commands too quickly, try again in a moment").withEphemeral(true);
     }
 
-    public Publisher<?> handleButton(ButtonInteractionEvent event) {
+    private Publisher<?> dispatchButton(ButtonInteractionEvent event) {
         User who = event.getInteraction().getUser();
         ButtonInteractionData interaction = new ButtonInteractionData(namespace, who, botUser, event);
         interaction.log(log::info);
 
-        return Flux.concat(
-                buttonHandlers.stream()
-                        .filter(handler -> event.getCustomId().startsWith(handler.getPrefix()))
-                        .map(b -> b.handle(interaction))
-                        .collect(Collectors.toList()))
+        int route = registry.getButtonRouter().route(event.getCustomId());
+        if (route == ButtonRouter.NO_ROUTE) {
+            log.info("No button listener for " + event.getCustomId());
+            return Mono.empty();
+        }
+
+        return BotMetrics.timeInteraction("button", registry.getButtons().get(route).prefix(), "click",
+                        buttonHandlers[route].handle(interaction))
                 .doOnError(Throwable::printStackTrace)
                 .doOnError(log::fatal);
     }
 
-    public Publisher<?> handleSlash(ApplicationCommandInteractionEvent event) {
+    private Publisher<?> dispatchSlash(ApplicationCommandInteractionEvent event) {
         User who = event.getInteraction().getUser();
         ApplicationCommandInteractionData interaction = new ApplicationCommandInteractionData(namespace, who, botUser, event);
         interaction.log(log::info);
 
         String command = event.getCommandName();
         if (commandHandlers.containsKey(command)) {
-            return Flux.concat(commandHandlers.get(command).handle(interaction)).doOnError(log::fatal);
+            return BotMetrics.timeInteraction("slash", command, subCommandName(event),
+                            Flux.concat(commandHandlers.get(command).handle(interaction)))
+                    .doOnError(log::fatal);
         } else {
             return event.reply("Something went wrong").withEphemeral(true);
         }
     }
 
-    public Publisher<?> handleMessageCreate(MessageCreateEvent event) {
-        var who = event.getMember();
-        if (who.isEmpty()) {
-            return Mono.just(new Whatever());
+    private static String subCommandName(ApplicationCommandInteractionEvent event) {
+        return event.getInteraction().getCommandInteraction()
+                .map(ApplicationCommandInteraction::getOptions)
+                .filter(options -> !options.isEmpty())
+                .map(options -> options.get(0))
+                .map(ApplicationCommandInteractionOption::getName)
+                .orElse("");
+    }
+
+    private Publisher<?> dispatchMessageCreate(MessageCreateEvent event, Member who, int[] routes) {
+        MessageCreateData data = new MessageCreateData(namespace, who, botUser, event);
+        List<Mono<Void>> handled = new ArrayList<>(routes.length);
+        for (int route : routes) {
+            MessageHandler handler = messageHandlers[route];
+            handled.add(BotMetrics.timeInteraction("message", handler.getClass().getSimpleName(), "create",
+                    handler.handleMessageCreate(data)).then());
         }
 
-        return Flux.fromIterable(this.messageHandlers)
-                .flatMap(m -> m.handleMessageCreate(new MessageCreateData(namespace, who.get(), botUser, event)));
+        return Flux.merge(handled);
     }
 }
@@ -7,19 +7,17 @@ import lombok.extern.log4j.Log4j2;
 import org.reactivestreams.Publisher;
 import reactor.core.publisher.Mono;
 
-import java.lang.reflect.Method;
-
 @Log4j2
 @RequiredArgsConstructor
 public class PartitionedButtonHandler {
     @Getter
     private final String prefix;
-    private final Method handlerMethod;
+    private final ButtonInvoker invoker;
     private final Object handlerInstance;
 
     public Publisher<?> handle(ButtonInteractionData interaction) {
         try {
-            return ((Publisher<?>) handlerMethod.invoke(handlerInstance, interaction));
+            return invoker.invoke(handlerInstance, interaction);
         } catch (Exception e) {
             return Mono.error(new RuntimeException(e));
         }
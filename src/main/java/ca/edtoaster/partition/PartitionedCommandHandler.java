@@ -1,22 +1,27 @@
 package ca.edtoaster.partition;
 
 import ca.edtoaster.commands.data.ApplicationCommandInteractionData;
+import discord4j.common.util.Snowflake;
 import discord4j.core.object.command.ApplicationCommandInteraction;
 import discord4j.core.object.command.ApplicationCommandInteractionOption;
 import discord4j.core.object.command.ApplicationCommandInteractionOptionValue;
+import discord4j.core.object.command.ApplicationCommandInteractionResolved;
 import discord4j.core.object.command.ApplicationCommandOption;
+import discord4j.core.object.entity.Role;
+import discord4j.core.object.entity.User;
+import discord4j.core.object.entity.channel.Channel;
 import discord4j.discordjson.json.ApplicationCommandOptionData;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.log4j.Log4j2;
 import org.reactivestreams.Publisher;
+import reactor.core.publisher.Mono;
 
-import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.function.Function;
-import java.util.stream.Collectors;
 
 /**
  * Handles multiple commands in the same @Namespace
@@ -26,24 +31,37 @@ import java.util.stream.Collectors;
 public class PartitionedCommandHandler {
     private final String command;
     private final Map<String, List<ApplicationCommandOptionData>> optionsMap;
-    private final Map<String, Method> handlersMap;
+    private final Map<String, CommandInvoker> handlersMap;
     private final Object handlerInstance;
+    private final ResolvedEntityCache entityCache;
 
+    // stands in for an absent option while values travel through Mono.zip, which does not allow nulls
+    private static final Object ABSENT = new Object();
+
+    private static final int USER = ApplicationCommandOption.Type.USER.getValue();
+    private static final int CHANNEL = ApplicationCommandOption.Type.CHANNEL.getValue();
+    private static final int ROLE = ApplicationCommandOption.Type.ROLE.getValue();
+
+    // options that can be read straight off the interaction
     private static final Map<Integer, Function<ApplicationCommandInteractionOptionValue, Object>> fetcher;
     static {
         fetcher = new HashMap<>();
         fetcher.put(ApplicationCommandOption.Type.STRING.getValue(), ApplicationCommandInteractionOptionValue::asString);
         fetcher.put(ApplicationCommandOption.Type.INTEGER.getValue(), ApplicationCommandInteractionOptionValue::asLong);
         fetcher.put(ApplicationCommandOption.Type.BOOLEAN.getValue(), ApplicationCommandInteractionOptionValue::asBoolean);
-        fetcher.put(ApplicationCommandOption.Type.USER.getValue(), v -> v.asUser().block());
-        fetcher.put(ApplicationCommandOption.Type.CHANNEL.getValue(), v -> v.asChannel().block());
-        fetcher.put(ApplicationCommandOption.Type.ROLE.getValue(), v -> v.asRole().block());
+    }
+
+    private static boolean isEntity(int type) {
+        return type == USER || type == CHANNEL || type == ROLE;
+    }
+
+    private static Optional<ApplicationCommandInteractionOptionValue> getValue(ApplicationCommandInteractionOption subCommand,
+                                                                               ApplicationCommandOptionData data) {
+        return subCommand.getOption(data.name()).flatMap(ApplicationCommandInteractionOption::getValue);
     }
 
     private Object fetchOptions(ApplicationCommandInteractionOption subCommand, ApplicationCommandOptionData data) {
-        Optional<ApplicationCommandInteractionOption> optOpt = subCommand.getOption(data.name());
-        if (optOpt.isEmpty()) return null;
-        Optional<ApplicationCommandInteractionOptionValue> valOpt = optOpt.get().getValue();
+        Optional<ApplicationCommandInteractionOptionValue> valOpt = getValue(subCommand, data);
         if (valOpt.isEmpty()) return null;
 
         ApplicationCommandInteractionOptionValue val = valOpt.get();
@@ -54,13 +72,62 @@ public class PartitionedCommandHandler {
         return fetcher.get(data.type()).apply(val);
     }
 
+    /**
+     * Resolve a single option without blocking. Users, channels and roles come from the interaction's
+     * resolved payload, then the guild's entity cache, and only then from a REST call.
+     */
+    private Mono<Object> resolveOption(ApplicationCommandInteractionOption subCommand,
+                                       ApplicationCommandOptionData data,
+                                       Optional<ApplicationCommandInteractionResolved> resolved) {
+        int type = data.type();
+        if (!isEntity(type)) {
+            Object value = fetchOptions(subCommand, data);
+            return Mono.just(value == null ? ABSENT : value);
+        }
+
+        Optional<ApplicationCommandInteractionOptionValue> valOpt = getValue(subCommand, data);
+        if (valOpt.isEmpty()) return Mono.just(ABSENT);
+
+        ApplicationCommandInteractionOptionValue val = valOpt.get();
+        Snowflake id = val.asSnowflake();
+
+        if (type == USER) {
+            Optional<User> user = resolved.flatMap(r -> r.getUser(id));
+            if (user.isPresent()) return Mono.just(user.get());
+            return fromCacheOrFetch(id, User.class, val.asUser());
+        } else if (type == ROLE) {
+            Optional<Role> role = resolved.flatMap(r -> r.getRole(id));
+            if (role.isPresent()) return Mono.just(role.get());
+            return fromCacheOrFetch(id, Role.class, val.asRole());
+        } else {
+            // the resolved payload only carries partial channels, so channels always go through the cache
+            return fromCacheOrFetch(id, Channel.class, val.asChannel());
+        }
+    }
+
+    private <T> Mono<Object> fromCacheOrFetch(Snowflake id, Class<T> type, Mono<T> fetch) {
+        T cached = entityCache.get(id, type);
+        if (cached != null) return Mono.just(cached);
+
+        return fetch
+                .doOnNext(value -> entityCache.put(id, value))
+                .cast(Object.class)
+                .defaultIfEmpty(ABSENT);
+    }
+
+    private static Object unwrap(Object[] values, int i) {
+        if (i >= values.length) return null;
+        Object value = values[i];
+        return value == ABSENT ? null : value;
+    }
+
     public Publisher<?> handle(ApplicationCommandInteractionData interaction) {
         // assume there is a subcommand
         var event = interaction.getEvent();
-        List<ApplicationCommandInteractionOption> options = event.getInteraction()
+        ApplicationCommandInteraction commandInteraction = event.getInteraction()
                 .getCommandInteraction()
-                .map(ApplicationCommandInteraction::getOptions)
                 .orElseThrow(IllegalStateException::new); // should always be there
+        List<ApplicationCommandInteractionOption> options = commandInteraction.getOptions();
 
         if (options.size() == 0) {
             // no subcommand -- throw??
@@ -74,16 +141,39 @@ public class PartitionedCommandHandler {
         }
 
         String subCommandName = subCommand.getName();
+        List<ApplicationCommandOptionData> optionData = optionsMap.get(subCommandName);
+        CommandInvoker invoker = handlersMap.get(subCommandName);
+        if (optionData == null || invoker == null) {
+            return event.reply("Unknown subcommand").withEphemeral(true);
+        }
 
-        List<Object> methodParams =
-                optionsMap.get(subCommandName).stream()
-                    .map(data -> fetchOptions(subCommand, data))
-                    .collect(Collectors.toList());
-
-        methodParams.add(0, interaction);
+        int numOptions = optionData.size();
+        boolean needsResolution = false;
+        for (int i = 0; i < numOptions; i++) {
+            needsResolution |= isEntity(optionData.get(i).type());
+        }
 
         try {
-            return (Publisher<?>) handlersMap.get(subCommandName).invoke(handlerInstance, methodParams.toArray());
+            if (!needsResolution) {
+                // options are fetched straight into the invoker's slots, no argument array is built
+                Object a0 = numOptions > 0 ? fetchOptions(subCommand, optionData.get(0)) : null;
+                Object a1 = numOptions > 1 ? fetchOptions(subCommand, optionData.get(1)) : null;
+                Object a2 = numOptions > 2 ? fetchOptions(subCommand, optionData.get(2)) : null;
+                Object a3 = numOptions > 3 ? fetchOptions(subCommand, optionData.get(3)) : null;
+
+                return invoker.invoke(handlerInstance, interaction, a0, a1, a2, a3);
+            }
+
+            // resolve every option concurrently, then invoke once all of them are in
+            Optional<ApplicationCommandInteractionResolved> resolved = commandInteraction.getResolved();
+            List<Mono<Object>> resolvers = new ArrayList<>(numOptions);
+            for (ApplicationCommandOptionData data : optionData) {
+                resolvers.add(resolveOption(subCommand, data, resolved));
+            }
+
+            return Mono.zip(resolvers, values -> values)
+                    .flatMapMany(values -> invoker.invoke(handlerInstance, interaction,
+                            unwrap(values, 0), unwrap(values, 1), unwrap(values, 2), unwrap(values, 3)));
         } catch (Exception e) {
             e.printStackTrace();
             log.error(e);
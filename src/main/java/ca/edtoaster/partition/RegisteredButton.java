@@ -0,0 +1,7 @@
+package ca.edtoaster.partition;
+
+/**
+ * Guild independent metadata for a single @ButtonListener method
+ */
+public record RegisteredButton(int handlerIndex, String prefix, ButtonInvoker invoker) {
+}
@@ -0,0 +1,15 @@
+package ca.edtoaster.partition;
+
+import discord4j.discordjson.json.ApplicationCommandOptionData;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Guild independent metadata for a single @CommandNamespace class
+ */
+public record RegisteredNamespace(int handlerIndex,
+                                  String name,
+                                  Map<String, List<ApplicationCommandOptionData>> optionsMap,
+                                  Map<String, CommandInvoker> invokers) {
+}
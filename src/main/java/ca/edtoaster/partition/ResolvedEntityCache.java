@@ -0,0 +1,73 @@
+package ca.edtoaster.partition;
+
+import discord4j.common.util.Snowflake;
+import reactor.util.annotation.Nullable;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Per guild cache of users, channels and roles that were fetched to resolve command options.
+ * Entries expire after a fixed TTL so renamed entities are eventually picked up again, and the least recently
+ * used ones make room once the cache is full.
+ */
+public class ResolvedEntityCache {
+    public static final Duration DEFAULT_TTL = Duration.ofMinutes(5);
+    public static final int DEFAULT_MAX_SIZE = 1024;
+
+    private record Entry(Object value, long expiresAt) {
+    }
+
+    private final long ttlNanos;
+    private final int maxSize;
+    // in access order so the eldest entry is the least recently used; guarded by itself
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+
+    public ResolvedEntityCache() {
+        this(DEFAULT_TTL, DEFAULT_MAX_SIZE);
+    }
+
+    public ResolvedEntityCache(Duration ttl, int maxSize) {
+        this.ttlNanos = ttl.toNanos();
+        this.maxSize = maxSize;
+    }
+
+    @Nullable
+    public <T> T get(Snowflake id, Class<T> type) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(id.asLong());
+            if (entry == null) return null;
+
+            if (System.nanoTime() - entry.expiresAt() > 0) {
+                entries.remove(id.asLong());
+                return null;
+            }
+        }
+
+        return type.isInstance(entry.value()) ? type.cast(entry.value()) : null;
+    }
+
+    public void put(Snowflake id, Object value) {
+        Entry entry = new Entry(value, System.nanoTime() + ttlNanos);
+        synchronized (entries) {
+            entries.put(id.asLong(), entry);
+            if (entries.size() > maxSize) {
+                evictExpired();
+            }
+            // still full of live entries, drop the least recently used
+            Iterator<Map.Entry<Long, Entry>> eldest = entries.entrySet().iterator();
+            while (entries.size() > maxSize && eldest.hasNext()) {
+                eldest.next();
+                eldest.remove();
+            }
+        }
+    }
+
+    private void evictExpired() {
+        long now = System.nanoTime();
+        entries.values().removeIf(e -> now - e.expiresAt() > 0);
+    }
+}
@@ -1,23 +1,106 @@
 package ca.edtoaster.util;
 
+import ca.edtoaster.metrics.BotMetrics;
 import discord4j.common.util.Snowflake;
+import com.fasterxml.jackson.core.JsonFactory;
+import io.micrometer.core.instrument.Timer;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelOption;
 import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
 import lombok.extern.log4j.Log4j2;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
-import reactor.netty.ByteBufFlux;
+import reactor.netty.http.HttpProtocol;
 import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
 
-import java.nio.charset.Charset;
-import java.util.Optional;
-import java.util.concurrent.atomic.AtomicReference;
-import java.util.function.Predicate;
-import java.util.stream.Collector;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 
+/**
+ * Client for one conversation backend. It holds a long-lived connection pool, so create one per endpoint and
+ * share it between guilds rather than one per request.
+ */
 @Log4j2
-public class ChatGPT {
+public class ChatGPT implements Disposable {
 
     public static final String CONVERSATION_ENDPOINT = "https://chat.openai.com/backend-api/conversation";
 
+    private static final int MAX_CONNECTIONS = 16;
+    private static final int MAX_PENDING_ACQUIRES = 256;
+    private static final Duration PENDING_ACQUIRE_TIMEOUT = Duration.ofSeconds(10);
+    // below the usual 60s idle cutoff of load balancers, so a pooled connection is not closed while being reused
+    private static final Duration MAX_IDLE_TIME = Duration.ofSeconds(50);
+    private static final Duration MAX_LIFE_TIME = Duration.ofMinutes(10);
+    private static final Duration EVICTION_INTERVAL = Duration.ofSeconds(30);
+    private static final int CONNECT_TIMEOUT_MILLIS = 5_000;
+    // longest silence allowed between reads, generation can stall for a while mid answer
+    private static final Duration RESPONSE_TIMEOUT = Duration.ofSeconds(60);
+    private static final int INITIAL_BODY_BYTES = 512;
+
+    private final String endpoint;
+    private final ConnectionProvider connections;
+    private final HttpClient client;
+
+    // parsers and generators are cheap to create from a shared factory, which recycles their buffers
+    static final JsonFactory JSON = new JsonFactory();
+    // what the user waits for before the answer starts showing
+    private static final Timer FIRST_TOKEN = BotMetrics.timer("toastbot.chat.first.token");
+
+    public ChatGPT() {
+        this(CONVERSATION_ENDPOINT);
+    }
+
+    /**
+     * @param endpoint the conversation endpoint, plain http is only meant for local stand-in servers
+     */
+    public ChatGPT(String endpoint) {
+        this.endpoint = endpoint;
+        URI uri = URI.create(endpoint);
+        // active, idle and pending acquire gauges are published as reactor.netty.connection.provider.*
+        this.connections = ConnectionProvider.builder("chatgpt-" + uri.getHost())
+                .maxConnections(MAX_CONNECTIONS)
+                .pendingAcquireMaxCount(MAX_PENDING_ACQUIRES)
+                .pendingAcquireTimeout(PENDING_ACQUIRE_TIMEOUT)
+                .maxIdleTime(MAX_IDLE_TIME)
+                .maxLifeTime(MAX_LIFE_TIME)
+                .evictInBackground(EVICTION_INTERVAL)
+                .metrics(true)
+                .build();
+        this.client = createClient(connections, "https".equalsIgnoreCase(uri.getScheme()));
+    }
+
+    private static HttpClient createClient(ConnectionProvider connections, boolean secure) {
+        HttpClient client = HttpClient.create(connections)
+                .keepAlive(true)
+                .compress(true)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, CONNECT_TIMEOUT_MILLIS)
+                .responseTimeout(RESPONSE_TIMEOUT)
+                // connect, TLS handshake and response timings, there is a single endpoint so the uri is a safe tag
+                .metrics(true, Function.identity());
+        // HTTP/2 is negotiated through ALPN, so only over TLS; servers without it get HTTP/1.1
+        return secure
+                ? client.secure().protocol(HttpProtocol.H2, HttpProtocol.HTTP11)
+                : client.protocol(HttpProtocol.HTTP11);
+    }
+
+    @Override
+    public void dispose() {
+        connections.dispose();
+    }
+
+    @Override
+    public boolean isDisposed() {
+        return connections.isDisposed();
+    }
+
     /*
      * curl 'https://chat.openai.com/backend-api/conversation'
      *  -X POST
@@ -25,40 +108,62 @@ public class ChatGPT {
      *  --data-raw '{"action":"next","messages":[{"id":"b6e943cd-140b-4dcd-a0da-e03062df049b","role":"user","content":{"content_type":"text","parts":["hello"]}}],"parent_message_id":"f3c5cc77-272a-4572-b994-b7e71d0a939a","model":"text-davinci-002-render"}'
      */
 
-    public Mono<String> query(ChatRequest request, String token) {
-        return getSender(request, token)
-                .responseSingle((res, content) -> content)
-                .map(c -> {
-                    String res = c.toString(Charset.defaultCharset());
-                    log.info(res);
-                    return res;
-                })
-                .map(this::extractMessageFromResponse);
+    /**
+     * The answer as it is generated. Every event carries the whole message so far, so each element supersedes
+     * the previous one and the last is the complete answer.
+     */
+    public Flux<ChatResponse> stream(ChatRequest request, String token) {
+        return BotMetrics.time("toastbot.chat.query", streamUntimed(request, token));
     }
 
-    private String extractMessageFromResponse(String response) {
-        return response.lines()
-                .filter(Predicate.not(String::isBlank))
-                .map(s -> s.replaceFirst("data:", "").strip())
-                .takeWhile(Predicate.not("[DONE]"::equals))
-                .collect(lastCollector())
-                .orElse("");
+    /**
+     * The complete answer, empty when nothing was generated
+     */
+    public Mono<ChatResponse> query(ChatRequest request, String token) {
+        return stream(request, token).takeLast(1).next();
     }
 
-    public static <T>
-    Collector<T, AtomicReference<T>, Optional<T>> lastCollector() {
-        return Collector.of(
-                        AtomicReference::new, AtomicReference::set,
-                        (a1, a2) -> a2,
-                        a -> Optional.ofNullable(a.get()));
+    private Flux<ChatResponse> streamUntimed(ChatRequest request, String token) {
+        return Flux.defer(() -> {
+            long start = System.nanoTime();
+            AtomicBoolean first = new AtomicBoolean(true);
+            ChatResponseDecoder decoder = new ChatResponseDecoder();
+            return getSender(request, token)
+                    .response((res, content) -> {
+                        if (res.status().code() != HttpResponseStatus.OK.code()) {
+                            return content.aggregate().asString(StandardCharsets.UTF_8).defaultIfEmpty("")
+                                    .flatMapMany(body -> Flux.error(new IllegalStateException(
+                                            String.format("Conversation request failed with %s: %s", res.status(), body))));
+                        }
+                        // chunks are released as soon as onNext returns, so each is decoded right there
+                        return content.<ChatResponse>handle((chunk, sink) -> {
+                            ChatResponse response = decoder.feed(chunk);
+                            if (response != null) sink.next(response);
+                        });
+                    })
+                    .doOnNext(r -> {
+                        if (first.getAndSet(false)) {
+                            FIRST_TOKEN.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                        }
+                    });
+        });
     }
 
     private HttpClient.ResponseReceiver<?> getSender(ChatRequest data, String token) {
-        return HttpClient.create()
+        return client
                 .headers((h) -> setHeaders(h, token))
                 .post()
-                .uri(CONVERSATION_ENDPOINT)
-                .send(ByteBufFlux.fromString(Mono.just(data.formatJSON())));
+                .uri(endpoint)
+                .send((req, out) -> out.send(Mono.fromCallable(() -> {
+                    ByteBuf body = out.alloc().buffer(INITIAL_BODY_BYTES);
+                    try {
+                        data.writeJSON(body);
+                        return body;
+                    } catch (IOException | RuntimeException e) {
+                        body.release();
+                        throw e;
+                    }
+                })));
     }
 
     /**
@@ -82,7 +187,7 @@ public class ChatGPT {
     private void setHeaders(HttpHeaders headers, String token) {
         headers
                 .add("User-Agent", "Mozilla/5.0 (Macintosh; Intel Mac OS X 10.15; rv:102.0) Gecko/20100101 Firefox/102.0")
-                .add("Accept", "application/json")
+                .add("Accept", "text/event-stream")
                 .add("Content-Type", "application/json")
                 .add("Authorization", String.format("Bearer %s", token));
     }
@@ -1,11 +1,12 @@
 package ca.edtoaster.util;
 
-import com.fasterxml.jackson.databind.node.ArrayNode;
-import com.fasterxml.jackson.databind.node.JsonNodeFactory;
-import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.core.JsonGenerator;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
 import lombok.Data;
-import reactor.util.annotation.Nullable;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.UUID;
 
 @Data
@@ -28,28 +29,36 @@ public class ChatRequest {
         }
      */
 
+    private static final String MODEL = "text-davinci-002-render";
+
     private final ResponseId parentResponse;
     private final String text;
 
-    public String formatJSON() {
-        ObjectNode node = new ObjectNode(JsonNodeFactory.instance)
-                .put("action", "next")
-                .put("parent_message_id", parentResponse.getParentId())
-                .put("conversation_id", parentResponse.getConversationId())
-                .put("model", "text-davinci-002-render");
-
-        ArrayNode messages = node.putArray("messages");
-        ObjectNode message = messages.addObject()
-                .put("id", UUID.randomUUID().toString())
-                .put("role", "user");
-
-        ObjectNode content = message.putObject("content")
-                .put("content_type", "text");
+    /**
+     * Write the request body straight into the buffer
+     */
+    public void writeJSON(ByteBuf out) throws IOException {
+        try (JsonGenerator json = ChatGPT.JSON.createGenerator((OutputStream) new ByteBufOutputStream(out))) {
+            json.writeStartObject();
+            json.writeStringField("action", "next");
+            json.writeStringField("parent_message_id", parentResponse.getParentId());
+            json.writeStringField("conversation_id", parentResponse.getConversationId());
+            json.writeStringField("model", MODEL);
 
-        ArrayNode parts = content.putArray("parts")
-                .add(text);
+            json.writeArrayFieldStart("messages");
+            json.writeStartObject();
+            json.writeStringField("id", UUID.randomUUID().toString());
+            json.writeStringField("role", "user");
+            json.writeObjectFieldStart("content");
+            json.writeStringField("content_type", "text");
+            json.writeArrayFieldStart("parts");
+            json.writeString(text);
+            json.writeEndArray();
+            json.writeEndObject();
+            json.writeEndObject();
+            json.writeEndArray();
 
-        return node.toString();
+            json.writeEndObject();
+        }
     }
-
 }
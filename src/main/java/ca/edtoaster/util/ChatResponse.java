@@ -1,12 +1,16 @@
 package ca.edtoaster.util;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
 import lombok.Data;
 import lombok.extern.log4j.Log4j2;
 import reactor.util.annotation.Nullable;
 
+import java.io.IOException;
+import java.io.InputStream;
+
 @Data
 @Log4j2
 public class ChatResponse {
@@ -34,37 +38,80 @@ public class ChatResponse {
             "error": null
         }
      */
+    /**
+     * Pull the answer out of one event, reading only the fields it needs and skipping the rest
+     */
     @Nullable
-    public static ChatResponse parse(String data) {
-        ObjectMapper mapper = new ObjectMapper();
-        JsonNode node;
-        try {
-            node = mapper.readTree(data);
-        } catch (JsonProcessingException e) {
-            log.error(e);
+    public static ChatResponse parse(ByteBuf data) {
+        try (JsonParser parser = createParser(data)) {
+            return parse(parser);
+        } catch (IOException e) {
+            log.error("Could not parse conversation event", e);
             return null;
         }
+    }
 
-        if (node == null) return null;
-
-        JsonNode conversationId = node.get("conversation_id");
-        if (conversationId == null) return null;
-
-        JsonNode message = node.get("message");
-        if (message == null) return null;
-
-        JsonNode id = message.get("id");
-        if (id == null) return null;
+    private static JsonParser createParser(ByteBuf data) throws IOException {
+        if (data.hasArray()) {
+            return ChatGPT.JSON.createParser(data.array(), data.arrayOffset() + data.readerIndex(), data.readableBytes());
+        }
+        // direct buffers are read through jackson's recycled input buffer
+        return ChatGPT.JSON.createParser((InputStream) new ByteBufInputStream(data.duplicate()));
+    }
 
-        JsonNode content = message.get("content");
-        if (content == null) return null;
+    @Nullable
+    private static ChatResponse parse(JsonParser parser) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) return null;
 
-        JsonNode parts = content.get("parts");
-        if (parts == null) return null;
+        String conversationId = null;
+        String id = null;
+        String part = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            if (field.equals("conversation_id") && value == JsonToken.VALUE_STRING) {
+                conversationId = parser.getText();
+            } else if (field.equals("message") && value == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String messageField = parser.currentName();
+                    JsonToken messageValue = parser.nextToken();
+                    if (messageField.equals("id") && messageValue == JsonToken.VALUE_STRING) {
+                        id = parser.getText();
+                    } else if (messageField.equals("content") && messageValue == JsonToken.START_OBJECT) {
+                        part = firstPart(parser);
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
 
-        JsonNode part = parts.get(0);
-        if (part == null) return null;
+        if (conversationId == null || id == null || part == null) return null;
+        return new ChatResponse(new ResponseId(conversationId, id), part);
+    }
 
-        return new ChatResponse(new ResponseId(conversationId.asText(), id.asText()), part.asText());
+    /**
+     * content.parts[0], leaving the parser at the end of the content object
+     */
+    @Nullable
+    private static String firstPart(JsonParser parser) throws IOException {
+        String part = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            if (field.equals("parts") && value == JsonToken.START_ARRAY) {
+                JsonToken element = parser.nextToken();
+                if (element == JsonToken.VALUE_STRING) part = parser.getText();
+                while (element != JsonToken.END_ARRAY && element != null) {
+                    parser.skipChildren();
+                    element = parser.nextToken();
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return part;
     }
 }
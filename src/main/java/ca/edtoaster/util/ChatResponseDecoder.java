@@ -0,0 +1,43 @@
+package ca.edtoaster.util;
+
+import io.netty.buffer.ByteBuf;
+import reactor.util.annotation.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * Turns the chunks of a conversation response into answers. Every event carries the whole message so far,
+ * so only the latest answer of each chunk matters. Events after the end marker are ignored, which lets the
+ * response finish on its own and keeps the connection reusable.
+ */
+class ChatResponseDecoder implements Consumer<ByteBuf> {
+    private static final byte[] DONE = "[DONE]".getBytes(StandardCharsets.US_ASCII);
+
+    private final SseDecoder events = new SseDecoder();
+    private boolean done;
+    private ChatResponse latest;
+
+    /**
+     * @return the latest answer completed by this chunk, or null if it completed none
+     */
+    @Nullable
+    ChatResponse feed(ByteBuf chunk) {
+        if (done) return null;
+        events.feed(chunk, this);
+        ChatResponse response = latest;
+        latest = null;
+        return response;
+    }
+
+    @Override
+    public void accept(ByteBuf data) {
+        if (done) return;
+        if (data.readableBytes() == DONE.length && SseDecoder.startsWith(data, data.readerIndex(), DONE.length, DONE)) {
+            done = true;
+            return;
+        }
+        ChatResponse response = ChatResponse.parse(data);
+        if (response != null) latest = response;
+    }
+}
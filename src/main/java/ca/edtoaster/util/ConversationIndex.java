@@ -0,0 +1,104 @@
+package ca.edtoaster.util;
+
+import lombok.extern.log4j.Log4j2;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The conversation each chat thread continues from, i.e. the ids of the bot's last answer in it. Kept in a
+ * small properties file so threads carry on after a restart without reading their history back.
+ */
+@Log4j2
+public class ConversationIndex {
+    private static final String FILE_NAME = "chat-conversations.properties";
+    // threads that have not been talked in for a long time fall back to the history scan
+    private static final int MAX_THREADS = 10_000;
+
+    @Nullable
+    private final Path file;
+    // thread id to ids, in access order so the eldest entry is the least recently used thread; guarded by itself
+    private final LinkedHashMap<Long, ResponseId> threads = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, ResponseId> eldest) {
+            return size() > MAX_THREADS;
+        }
+    };
+    private final AtomicBoolean savePending = new AtomicBoolean();
+
+    /**
+     * @param dataDirectory where the index is persisted, or null to only keep it in memory
+     */
+    public ConversationIndex(@Nullable Path dataDirectory) {
+        this.file = dataDirectory == null ? null : dataDirectory.resolve(FILE_NAME);
+        if (file == null || !Files.exists(file)) return;
+
+        Properties saved = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            saved.load(in);
+        } catch (IOException e) {
+            // threads fall back to reading their history
+            log.error("Could not read chat conversations from " + file, e);
+            return;
+        }
+        for (String thread : saved.stringPropertyNames()) {
+            String[] ids = saved.getProperty(thread).split(",", 2);
+            if (ids.length == 2) {
+                threads.put(Long.parseLong(thread), new ResponseId(ids[0], ids[1]));
+            }
+        }
+        log.info(String.format("Loaded %d chat conversations", threads.size()));
+    }
+
+    @Nullable
+    public ResponseId get(long threadId) {
+        synchronized (threads) {
+            return threads.get(threadId);
+        }
+    }
+
+    /**
+     * Remember the bot's latest answer in a thread, the file is rewritten shortly after off the caller's thread
+     */
+    public void put(long threadId, ResponseId id) {
+        synchronized (threads) {
+            threads.put(threadId, id);
+        }
+        if (file != null && savePending.compareAndSet(false, true)) {
+            Mono.fromRunnable(this::save).subscribeOn(Schedulers.boundedElastic()).subscribe();
+        }
+    }
+
+    // synchronized so a save scheduled mid write waits its turn for the tmp file
+    private synchronized void save() {
+        // answers that land while writing schedule another save
+        savePending.set(false);
+        Properties snapshot = new Properties();
+        synchronized (threads) {
+            threads.forEach((thread, id) -> snapshot.setProperty(thread.toString(),
+                    id.getConversationId() + "," + id.getParentId()));
+        }
+
+        try {
+            Files.createDirectories(file.getParent());
+            Path tmp = file.resolveSibling(FILE_NAME + ".tmp");
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                snapshot.store(out, "Conversation and parent message continued in each chat thread");
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.error("Could not write chat conversations to " + file, e);
+        }
+    }
+}
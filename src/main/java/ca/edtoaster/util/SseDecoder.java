@@ -0,0 +1,107 @@
+package ca.edtoaster.util;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.ByteProcessor;
+
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * Splits a server-sent event stream into the data of each event as chunks arrive, scanning the chunks in
+ * place. An event whose data is a single line inside one chunk, which is nearly all of them, is handed over
+ * as a slice of that chunk; only lines cut by a chunk boundary or spread over several lines are copied.
+ * One decoder per response.
+ */
+class SseDecoder {
+    private static final byte[] DATA_FIELD = "data:".getBytes(StandardCharsets.US_ASCII);
+
+    // start of a line cut off at the end of the previous chunk
+    private final ByteBuf line = Unpooled.buffer(1024);
+    // data of the current event when it could not stay a slice
+    private final ByteBuf data = Unpooled.buffer(1024);
+    // data of the current event while it is a single line of the chunk being fed
+    private ByteBuf slice;
+    private boolean hasData;
+
+    /**
+     * @param onEvent gets the data of every event completed by this chunk, in order; the buffer is only valid
+     *                during the call
+     */
+    void feed(ByteBuf chunk, Consumer<ByteBuf> onEvent) {
+        while (chunk.isReadable()) {
+            int lf = chunk.forEachByte(ByteProcessor.FIND_LF);
+            if (lf < 0) {
+                line.writeBytes(chunk);
+                break;
+            }
+
+            if (line.isReadable()) {
+                line.writeBytes(chunk, lf - chunk.readerIndex());
+                chunk.skipBytes(1);
+                onLine(line, true, onEvent);
+                line.clear();
+            } else {
+                ByteBuf text = chunk.readSlice(lf - chunk.readerIndex());
+                chunk.skipBytes(1);
+                onLine(text, false, onEvent);
+            }
+        }
+
+        // the chunk is released once this returns, so an event still waiting for its blank line is copied
+        if (slice != null) {
+            data.writeBytes(slice);
+            slice = null;
+        }
+    }
+
+    private void onLine(ByteBuf text, boolean carried, Consumer<ByteBuf> onEvent) {
+        int start = text.readerIndex();
+        int length = text.readableBytes();
+        if (length > 0 && text.getByte(start + length - 1) == '\r') length--;
+
+        // a blank line ends the event
+        if (length == 0) {
+            dispatch(onEvent);
+            return;
+        }
+
+        // event names, ids and comments are never used by the endpoint
+        if (!startsWith(text, start, length, DATA_FIELD)) return;
+        start += DATA_FIELD.length;
+        length -= DATA_FIELD.length;
+        if (length > 0 && text.getByte(start) == ' ') {
+            start++;
+            length--;
+        }
+
+        if (!hasData && !carried) {
+            slice = text.slice(start, length);
+            hasData = true;
+            return;
+        }
+        if (slice != null) {
+            data.writeBytes(slice);
+            slice = null;
+        }
+        if (hasData) data.writeByte('\n');
+        data.writeBytes(text, start, length);
+        hasData = true;
+    }
+
+    private void dispatch(Consumer<ByteBuf> onEvent) {
+        if (!hasData) return;
+        onEvent.accept(slice != null ? slice : data);
+        slice = null;
+        data.clear();
+        hasData = false;
+    }
+
+    static boolean startsWith(ByteBuf buf, int start, int length, byte[] prefix) {
+        if (length < prefix.length) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (buf.getByte(start + i) != prefix[i]) return false;
+        }
+        return true;
+    }
+}